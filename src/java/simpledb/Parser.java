@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -187,23 +189,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
             }
 
         }
@@ -212,8 +210,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +221,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,12 +242,15 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupByField(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), null);
         }
         // sort the data
 
@@ -278,12 +277,57 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    // Zql has no LIMIT clause, so a trailing "LIMIT n" is cut off a
+    // statement before Zql parses it
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)(.*?)\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*");
+
+    /** The limit of a statement without a LIMIT clause */
+    public static final int NO_LIMIT = -1;
+
+    /**
+     * A statement, split into the SQL Zql can parse and the count of its
+     * LIMIT clause.
+     */
+    private static class Statement {
+        final String sql;
+        final int limit;
+
+        Statement(String sql, int limit) {
+            this.sql = sql;
+            this.limit = limit;
+        }
+    }
+
+    private static Statement splitLimit(String sql) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(sql);
+        if (!m.matches())
+            return new Statement(sql, NO_LIMIT);
+        try {
+            return new Statement(m.group(1) + m.group(3), Integer.parseInt(m.group(2)));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT is too large: " + m.group(2));
+        }
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, NO_LIMIT);
+    }
+
+    /**
+     * @param limit the count of the LIMIT clause of the query, or
+     *              {@link #NO_LIMIT}
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit != NO_LIMIT)
+            lp.addLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +509,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        Statement statement = splitLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(statement.sql.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (statement.limit != NO_LIMIT)
+                    lp.addLimit(statement.limit);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,8 +543,12 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            Statement statement = splitLimit(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    statement.sql.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
+            if (statement.limit != NO_LIMIT && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +569,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), statement.limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -567,7 +619,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -87,6 +87,19 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Remove a table from the catalog; does nothing if the table isn't
+     * there.  Its name is released too, unless a later table took it over.
+     *
+     * @param tableid the id of the table to remove
+     */
+    public void removeTable(int tableid) {
+        Table t = tableMap.remove(tableid);
+        if (t != null) {
+            nameToIdMap.remove(t.name, tableid);
+        }
+    }
+
     /**
      * Return the id of the table with a specified name,
      *
@@ -1,29 +1,59 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static simpledb.execution.Aggregator.NO_GROUPING;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by any number of columns. Several aggregates over the same
+ * grouping are computed in a single pass over the child.
+ * <p>
+ * When the child is a scan of a HeapFile, possibly under Filters, and more
+ * than one worker is allowed, the aggregate is computed in parallel: the
+ * workers take turns claiming the next few pages of the file, each scans
+ * and filters its pages into an aggregator of its own, and the partial
+ * results are merged by a final aggregator.  AVG is split into SUM_COUNT
+ * partials and an SC_AVG final state, and COUNT partials are summed.  The
+ * workers share the transaction, so the calling thread locks every page
+ * before they start and they never wait for a lock.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default number of workers the planner lets an aggregate use */
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    /** Number of pages a worker claims at a time */
+    private static final int MORSEL_PAGES = 16;
+
+    private static final ExecutorService WORKER_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "aggregate-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op op;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] ops;
     private TupleDesc td;
+    private final int workers;
 
     private OpIterator it;
 
@@ -43,63 +73,182 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-        // some code goes here
+        this(child, afield, gfield, aop, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afield  The column over which we are computing an aggregate.
+     * @param gfield  The column over which we are grouping the result, or -1 if
+     *                there is no grouping
+     * @param aop     The aggregation operator to use
+     * @param workers The largest number of threads to aggregate with
+     * @throws IllegalArgumentException if workers is not positive
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int workers) {
+        this(child, new int[]{afield}, gfield == NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop}, workers);
+    }
+
+    /**
+     * Constructor for several aggregates over the same grouping.  The output
+     * tuples hold the group-by fields, in the given order, followed by the
+     * aggregates.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The column each aggregate is computed over.
+     * @param gfields The columns over which we are grouping the result; empty
+     *                if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     * @param workers The largest number of threads to aggregate with
+     * @throws IllegalArgumentException if workers is not positive, there is
+     *                                  no aggregate or an operator is missing, or several aggregates or
+     *                                  group-by fields are asked for and an aggregate other than COUNT
+     *                                  is over a string
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops, int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("need at least one worker, not " + workers);
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need an operator for each of at least one aggregate");
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.op = aop;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.ops = aops.clone();
         this.td = child.getTupleDesc();
-        Type fieldType = td.getFieldType(gfield);
-        switch (fieldType) {
-            case INT_TYPE -> aggregator = new IntegerAggregator(gfield, td.getFieldType(gfield), afield, aop);
-            case STRING_TYPE -> aggregator = new StringAggregator(gfield, td.getFieldType(gfield), afield, aop);
+        this.workers = workers;
+        if (!isSingle()) {
+            for (int a = 0; a < ops.length; a++) {
+                if (ops[a] != Aggregator.Op.COUNT && td.getFieldType(afields[a]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException("cannot compute " + ops[a] + " of "
+                            + td.getFieldName(afields[a]) + " with other aggregates");
+            }
         }
+        aggregator = newAggregator(ops);
         it = aggregator.iterator();
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     * field index in the <b>INPUT</b> tuples. If not, return
+     * @return true if this is a single aggregate with at most one group-by
+     *         field, which an {@link IntegerAggregator} or
+     *         {@link StringAggregator} computes
+     */
+    private boolean isSingle() {
+        return gfields.length <= 1 && ops.length == 1;
+    }
+
+    private Type[] groupTypes() {
+        Type[] types = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            types[i] = td.getFieldType(gfields[i]);
+        return types;
+    }
+
+    /**
+     * @return an empty aggregator computing aops over the child's tuples.
+     *         Single aggregates over ints, and counts of any field, are
+     *         computed by an {@link IntegerAggregator}, and several aggregates
+     *         or group-by fields by a {@link MultiAggregator}
+     */
+    private Aggregator newAggregator(Aggregator.Op[] aops) {
+        if (!isSingle())
+            return new MultiAggregator(gfields, groupTypes(), afields, aops);
+        int gfield = groupField();
+        Type gbType = gfield == NO_GROUPING ? null : td.getFieldType(gfield);
+        if (td.getFieldType(afields[0]) == Type.INT_TYPE || aops[0] == Aggregator.Op.COUNT)
+            return new IntegerAggregator(gfield, gbType, afields[0], aops[0]);
+        return new StringAggregator(gfield, gbType, afields[0], aops[0]);
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a groupby, return the
+     * (first) groupby field index in the <b>INPUT</b> tuples. If not, return
      * {@link Aggregator#NO_GROUPING}
      */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? NO_GROUPING : gfields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     * of the groupby field in the <b>OUTPUT</b> tuples. If not, return
+     * of the (first) groupby field in the <b>OUTPUT</b> tuples. If not, return
      * null;
      */
     public String groupFieldName() {
         // some code goes here
-        return td.getFieldName(gfield);
+        if (gfields.length == 0)
+            return null;
+        return td.getFieldName(gfields[0]);
+    }
+
+    /**
+     * @return the indexes of all the groupby fields in the <b>INPUT</b>
+     * tuples; empty if there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the names of all the groupby fields
+     */
+    public String[] groupFieldNames() {
+        String[] names = new String[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            names[i] = td.getFieldName(gfields[i]);
+        return names;
     }
 
     /**
-     * @return the aggregate field
+     * @return the (first) aggregate field
      */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     * tuples
+     * @return return the name of the (first) aggregate field in the
+     * <b>OUTPUT</b> tuples
      */
     public String aggregateFieldName() {
         // some code goes here
-        return td.getFieldName(afield);
+        return td.getFieldName(afields[0]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return op;
+        return ops[0];
+    }
+
+    /**
+     * @return the fields of all the aggregates
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the names of the fields of all the aggregates
+     */
+    public String[] aggregateFieldNames() {
+        String[] names = new String[afields.length];
+        for (int a = 0; a < afields.length; a++)
+            names[a] = td.getFieldName(afields[a]);
+        return names;
+    }
+
+    /**
+     * @return the operators of all the aggregates
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return ops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -111,20 +260,165 @@ public class Aggregate extends Operator {
         // some code goes here
         super.open();
 
-        child.open();
-        while (this.child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(this.child.next());
+        List<Predicate> predicates = new ArrayList<>();
+        SeqScan scan = parallelScan(child, predicates);
+        if (scan != null) {
+            aggregator = aggregateInParallel(scan, predicates);
+        } else {
+            aggregator = newAggregator(ops);
+            child.open();
+            while (this.child.hasNext()) {
+                aggregator.mergeTupleIntoGroup(this.child.next());
+            }
         }
         it = aggregator.iterator();
         it.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * @return the scan under the child if the aggregate can be split across
+     *         workers, adding the predicates of the Filters above it to
+     *         predicates; or null to aggregate the child in this thread
+     */
+    private SeqScan parallelScan(OpIterator node, List<Predicate> predicates) {
+        if (workers < 2)
+            return null;
+        for (Aggregator.Op op : ops) {
+            if (op == Aggregator.Op.SUM_COUNT || op == Aggregator.Op.SC_AVG)
+                return null;
+        }
+        while (node instanceof Filter) {
+            predicates.add(((Filter) node).getPredicate());
+            node = ((Filter) node).getChildren()[0];
+        }
+        if (!(node instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) node;
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof HeapFile) || ((HeapFile) file).numPages() <= MORSEL_PAGES)
+            return null;
+        return scan;
+    }
+
+    /**
+     * @return the operators each worker aggregates its tuples with
+     */
+    private Aggregator.Op[] partialOps() {
+        Aggregator.Op[] partial = new Aggregator.Op[ops.length];
+        for (int a = 0; a < ops.length; a++)
+            partial[a] = ops[a] == Aggregator.Op.AVG ? Aggregator.Op.SUM_COUNT : ops[a];
+        return partial;
+    }
+
+    /**
+     * @return an aggregator that merges the workers' partial aggregates,
+     *         which are (groupVal..., aggregateVal[, sumLowVal, countVal]...)
+     *         tuples
+     */
+    private Aggregator finalAggregator() {
+        Aggregator.Op[] partial = partialOps();
+        Aggregator.Op[] merge = new Aggregator.Op[ops.length];
+        int[] groups = new int[gfields.length];
+        int[] aggs = new int[ops.length];
+        for (int i = 0; i < groups.length; i++)
+            groups[i] = i;
+        int next = groups.length;
+        for (int a = 0; a < ops.length; a++) {
+            merge[a] = switch (ops[a]) {
+                case AVG -> Aggregator.Op.SC_AVG;
+                case COUNT -> Aggregator.Op.SUM;
+                default -> ops[a];
+            };
+            aggs[a] = next;
+            next += partial[a] == Aggregator.Op.SUM_COUNT ? 3 : 1;
+        }
+        if (!isSingle())
+            return new MultiAggregator(groups, groupTypes(), aggs, merge);
+        return groups.length == 0
+                ? new IntegerAggregator(NO_GROUPING, null, aggs[0], merge[0])
+                : new IntegerAggregator(0, groupTypes()[0], aggs[0], merge[0]);
+    }
+
+    /**
+     * Aggregate the tuples of the scan that satisfy all the predicates on up
+     * to workers threads, and merge the workers' partial aggregates.
+     *
+     * @return an aggregator holding the result
+     */
+    private Aggregator aggregateInParallel(SeqScan scan, List<Predicate> predicates)
+            throws DbException, TransactionAbortedException {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        TransactionId tid = scan.getTransactionId();
+        int numPages = file.numPages();
+        for (int p = 0; p < numPages; p++)
+            Database.getBufferPool().lockPage(tid, new HeapPageId(file.getId(), p), Permissions.READ_ONLY);
+        AtomicInteger nextPage = new AtomicInteger();
+        int n = Math.min(workers, (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES);
+        List<Future<Aggregator>> partials = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            partials.add(WORKER_EXECUTOR.submit(() -> {
+                Aggregator partial = newAggregator(partialOps());
+                int first;
+                while ((first = nextPage.getAndAdd(MORSEL_PAGES)) < numPages) {
+                    DbFileIterator pages = file.iterator(tid, first, Math.min(first + MORSEL_PAGES, numPages));
+                    pages.open();
+                    while (pages.hasNext()) {
+                        Tuple t = pages.next();
+                        if (satisfiesAll(predicates, t))
+                            partial.mergeTupleIntoGroup(t);
+                    }
+                    pages.close();
+                }
+                return partial;
+            }));
+        }
+
+        Aggregator result = finalAggregator();
+        Exception failure = null;
+        for (Future<Aggregator> f : partials) {
+            try {
+                OpIterator partial = f.get().iterator();
+                partial.open();
+                while (partial.hasNext()) {
+                    result.mergeTupleIntoGroup(partial.next());
+                }
+                partial.close();
+            } catch (ExecutionException e) {
+                // let the other workers stop early, but wait for all of them
+                // before giving up, so none is left reading pages
+                nextPage.set(numPages);
+                if (failure == null)
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                nextPage.set(numPages);
+                if (failure == null)
+                    failure = new TransactionAbortedException();
+            }
+        }
+        if (failure instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) failure;
+        if (failure instanceof DbException)
+            throw (DbException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure != null)
+            throw new DbException("parallel aggregate failed: " + failure);
+        return result;
+    }
+
+    private static boolean satisfiesAll(List<Predicate> predicates, Tuple t) {
+        for (Predicate p : predicates) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the rest are the results of computing the
+     * aggregates, in order. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -143,27 +437,35 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate. The group by fields, if any,
+     * come first, followed by an aggregate value column for each aggregate
+     * (three for SUM_COUNT: the high and low 32 bits of the sum, and the
+     * count).
      * <p>
-     * The name of an aggregate column should be informative. For example:
-     * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
-     * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * The group by columns keep their names in the child, and an aggregate
+     * column is named after its operator and field, e.g. "sum(t.salary)".
+     * Every aggregate is an INT, even a COUNT of strings.
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        TupleDesc resTd = null;
-        if (gfield == -1) {
-            Type[] types = new Type[]{td.getFieldType(afield)};
-            resTd = new TupleDesc(types);
-        } else {
-            Type[] types = new Type[]{td.getFieldType(gfield), td.getFieldType(afield)};
-            resTd = new TupleDesc(types);
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int gfield : gfields) {
+            types.add(td.getFieldType(gfield));
+            names.add(td.getFieldName(gfield));
+        }
+        for (int a = 0; a < ops.length; a++) {
+            types.add(Type.INT_TYPE);
+            names.add(nameOfAggregatorOp(ops[a]) + "(" + td.getFieldName(afields[a]) + ")");
+            if (ops[a] == Aggregator.Op.SUM_COUNT) {
+                // the low bits of the sum, and the count
+                types.add(Type.INT_TYPE);
+                names.add(null);
+                types.add(Type.INT_TYPE);
+                names.add(null);
+            }
         }
-        return resTd;
+        return new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
     }
 
     public void close() {
@@ -13,20 +13,23 @@ public interface Aggregator extends Serializable {
     int NO_GROUPING = -1;
 
     /**
-     * SUM_COUNT and SC_AVG will
-     * only be used in lab7, you are not required
-     * to implement them until then.
+     * SUM_COUNT and SC_AVG are the partial and final states of AVG, used
+     * to average in parallel; {@link IntegerAggregator} and
+     * {@link MultiAggregator} support them, {@link StringAggregator} does
+     * not.
      * */
     enum Op implements Serializable {
         MIN, MAX, SUM, AVG, COUNT,
         /**
-         * SUM_COUNT: compute sum and count simultaneously, will be
-         * needed to compute distributed avg in lab7.
+         * SUM_COUNT: compute sum and count simultaneously; the sum is
+         * returned at full width, as its high and low 32 bits in two
+         * fields, and the count in a field after them.
          * */
         SUM_COUNT,
         /**
-         * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
-         * will be used to compute distributed avg in lab7.
+         * SC_AVG: compute the avg of a set of SUM_COUNT tuples, whose sum
+         * is in the aggregate field (high bits) and the field after it (low
+         * bits), and whose count is in the field after those.
          * */
         SC_AVG;
 
@@ -2,6 +2,8 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,20 +11,71 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join: it builds a hash table on child1 and
+ * probes it with child2.  If child1 doesn't fit in the memory budget, both
+ * inputs are split into {@link #FANOUT} partitions by the hash of the join
+ * field; partition 0 stays in memory and is joined while child2 is read,
+ * the others are written to temporary heap files and joined one pair at a
+ * time afterwards.  A spilled partition that still doesn't fit is split
+ * again with a different hash, up to {@link #MAX_DEPTH} times; past that
+ * (e.g. a single key with too many tuples) it is joined a memory-sized
+ * chunk at a time, rescanning its probe side for each chunk.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the hash table, in pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
+    /** Number of partitions an input that doesn't fit is split into. */
+    static final int FANOUT = 8;
+
+    /** Number of times a partition that doesn't fit is split again. */
+    static final int MAX_DEPTH = 3;
+
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
+    private final int memoryTuples;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    /**
+     * A pair of spilled partitions still to be joined.
+     */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int depth;
+
+        Partition(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    // state of the pass joining the children, or one spilled partition
+    private transient OpIterator build, probe;
+    private transient Partition current;
+    private transient int depth;
+    private transient int resident;
+    private transient SpillFile[] buildParts, probeParts;
+    private transient boolean residentSpilled;
+    private transient boolean chunked;
+    private final Deque<Partition> pending = new ArrayDeque<>();
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -31,10 +84,23 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param memoryPages
+     *            Pages worth of child1 tuples to keep in the hash table;
+     *            a budget of less than one tuple is rounded up to one
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        int tupleSize = child1.getTupleDesc().getSize();
+        this.memoryTuples = Math.max(1, memoryPages * BufferPool.getPageSize() / tupleSize);
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -44,7 +110,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,34 +120,193 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    final Map<Field, List<Tuple>> map = new HashMap<>();
+
+    /**
+     * @return the partition of key at the given depth; each depth mixes in a
+     *         different seed, so a partition is split evenly again
+     */
+    static int partition(Field key, int depth) {
+        int h = key.hashCode() + depth * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, FANOUT);
+    }
+
+    private static void spill(SpillFile[] parts, int i, Tuple t, TupleDesc td) throws DbException {
+        if (parts[i] == null) {
+            parts[i] = new SpillFile(td);
+        }
+        parts[i].add(t);
+    }
+
+    private void addResident(Tuple t) {
+        map.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+        resident++;
+    }
+
+    /**
+     * Start joining build with probe; both must be open.
+     */
+    private void startPass(OpIterator build, OpIterator probe, int depth)
+            throws DbException, TransactionAbortedException {
+        this.build = build;
+        this.probe = probe;
+        this.depth = depth;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        resident = 0;
+        buildParts = null;
+        probeParts = null;
+        residentSpilled = false;
+        chunked = false;
+        listIt = null;
+        t2 = null;
+        loadMap();
+    }
+
+    /**
+     * Read the build side into the hash table, partitioning it once it
+     * overflows the memory budget.  When a chunked pass is under way, read
+     * only the next chunk.
+     */
+    private void loadMap() throws DbException, TransactionAbortedException {
+        TupleDesc td1 = build.getTupleDesc();
+        while (build.hasNext()) {
+            if (chunked && resident >= memoryTuples) {
+                return;
+            }
+            t1 = build.next();
+            if (buildParts == null) {
+                addResident(t1);
+                if (resident > memoryTuples && !chunked) {
+                    if (depth >= MAX_DEPTH) {
+                        chunked = true;
+                        return;
+                    }
+                    partitionMap(td1);
+                }
+                continue;
+            }
+            int part = partition(t1.getField(pred.getField1()), depth);
+            if (part == 0 && !residentSpilled) {
+                addResident(t1);
+                if (resident > memoryTuples) {
+                    // partition 0 alone is too big: spill it like the others
+                    for (List<Tuple> l : map.values()) {
+                        for (Tuple t : l) {
+                            spill(buildParts, 0, t, td1);
+                        }
+                    }
+                    map.clear();
+                    resident = 0;
+                    residentSpilled = true;
+                }
+            } else {
+                spill(buildParts, part, t1, td1);
+            }
+        }
+    }
+
+    /**
+     * Switch to partitioned mode: keep partition 0 of the hash table, and
+     * spill the rest.
+     */
+    private void partitionMap(TupleDesc td1) throws DbException {
+        buildParts = new SpillFile[FANOUT];
+        probeParts = new SpillFile[FANOUT];
+        Iterator<Map.Entry<Field, List<Tuple>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Field, List<Tuple>> e = it.next();
+            int part = partition(e.getKey(), depth);
+            if (part != 0) {
+                for (Tuple t : e.getValue()) {
+                    spill(buildParts, part, t, td1);
+                }
+                resident -= e.getValue().size();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Finish the current pass, queueing the partition pairs it spilled, and
+     * start the next one.
+     *
+     * @return false if there is no partition left to join
+     */
+    private boolean nextPass() throws DbException, TransactionAbortedException {
+        if (buildParts != null) {
+            for (int i = 0; i < FANOUT; i++) {
+                if (buildParts[i] != null && probeParts[i] != null) {
+                    buildParts[i].flush();
+                    probeParts[i].flush();
+                    pending.push(new Partition(buildParts[i], probeParts[i], depth + 1));
+                } else if (buildParts[i] != null) {
+                    buildParts[i].delete();
+                }
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+        endPartition();
+        if (pending.isEmpty()) {
+            return false;
+        }
+        current = pending.pop();
+        OpIterator b = current.build.iterator();
+        OpIterator p = current.probe.iterator();
+        b.open();
+        p.open();
+        startPass(b, p, current.depth);
+        return true;
+    }
+
+    private void endPartition() {
+        if (current != null) {
+            build.close();
+            probe.close();
+            current.delete();
+            current = null;
         }
-        return cnt > 0;
+    }
 
+    /**
+     * Delete every spill file, e.g. when the join is closed early.
+     */
+    private void discardSpills() {
+        endPartition();
+        if (buildParts != null) {
+            for (int i = 0; i < FANOUT; i++) {
+                if (buildParts[i] != null) {
+                    buildParts[i].delete();
+                }
+                if (probeParts[i] != null) {
+                    probeParts[i].delete();
+                }
+            }
+            buildParts = null;
+            probeParts = null;
+        }
+        while (!pending.isEmpty()) {
+            pending.pop().delete();
+        }
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        startPass(child1, child2, 0);
         super.open();
     }
 
     public void close() {
         super.close();
+        discardSpills();
         child2.close();
         child1.close();
         this.t1=null;
@@ -91,8 +316,10 @@ public class HashEquiJoin extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        discardSpills();
         child1.rewind();
         child2.rewind();
+        startPass(child1, child2, 0);
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -111,7 +338,7 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
@@ -132,32 +359,46 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            // loop around the probe side
+            if (probe.hasNext()) {
+                t2 = probe.next();
+                Field key = t2.getField(pred.getField2());
+                if (buildParts != null) {
+                    int part = partition(key, depth);
+                    if (part != 0 || residentSpilled) {
+                        // a partition without build tuples has no matches
+                        if (buildParts[part] != null) {
+                            spill(probeParts, part, t2, probe.getTupleDesc());
+                        }
+                        continue;
+                    }
+                }
+                List<Tuple> l = map.get(key);
+                if (l != null) {
+                    listIt = l.iterator();
+                }
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the probe side is done: join the next chunk of a chunked
+            // pass against it again, or move on to the next partition
+            if (chunked && build.hasNext()) {
+                map.clear();
+                resident = 0;
+                loadMap();
+                probe.rewind();
+                continue;
+            }
+            if (!nextPass()) {
+                return null;
+            }
         }
-
-        return null;
     }
 
     @Override
@@ -170,5 +411,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
@@ -0,0 +1,169 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * The IndexNestedLoopJoin operator joins each tuple of its outer child with
+ * the tuples of its inner child that an index lookup returns for it, so the
+ * inner relation is never scanned as a whole.  The inner child is an index
+ * access method whose index is on the inner join field; it is reopened with
+ * an {@link IndexPredicate} built from the join field of every outer tuple.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final Predicate.Op probeOp;
+    private OpIterator child1;
+    private IndexOpIterator child2;
+    private final TupleDesc td;
+    private transient Tuple t1;
+    private transient boolean innerOpen;
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Index access method for the right(inner) relation, with its
+     *            index on the field p.getField2()
+     * @throws IllegalArgumentException if the index cannot answer p
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, IndexOpIterator child2) {
+        this.pred = p;
+        this.probeOp = probeOp(p.getOperator());
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the operator comparing the inner join field with the outer
+     *         one, i.e. with the two sides of op swapped
+     */
+    private static Predicate.Op probeOp(Predicate.Op op) {
+        return switch (op) {
+            case EQUALS -> Predicate.Op.EQUALS;
+            case LESS_THAN -> Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ -> Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN -> Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ -> Predicate.Op.LESS_THAN_OR_EQ;
+            default -> throw new IllegalArgumentException("an index cannot answer " + op);
+        };
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return td.getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return td.getFieldName(child1.getTupleDesc().numFields() + pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        if (innerOpen) {
+            child2.close();
+            innerOpen = false;
+        }
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The inner tuples of an outer tuple come from one index
+     * lookup; the predicate is checked again, as an index may return more
+     * than the exact matches.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null) {
+                while (child2.hasNext()) {
+                    Tuple t2 = child2.next();
+                    if (pred.filter(t1, t2)) {
+                        return merge(t1, t2);
+                    }
+                }
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            t1 = child1.next();
+            IndexPredicate ipred = new IndexPredicate(probeOp, t1.getField(pred.getField1()));
+            if (innerOpen) {
+                child2.rewind(ipred);
+            } else {
+                child2.open(ipred);
+                innerOpen = true;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int t1numFields = t1.getTupleDesc().numFields();
+        Tuple tuple = new Tuple(td);
+        for (int i = 0; i < t1numFields; i++) {
+            tuple.setField(i, t1.getField(i));
+        }
+        for (int i = t1numFields; i < td.numFields(); i++) {
+            tuple.setField(i, t2.getField(i - t1numFields));
+        }
+        return tuple;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (IndexOpIterator) children[1];
+    }
+
+}
@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -20,6 +22,12 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of tuples handed to the buffer pool at a time, so that whole
+     * pages can be filled and appended at once
+     */
+    private static final int BATCH_SIZE = 1024;
+
     private TransactionId transactionId;
     private OpIterator child;
     private int tableId;
@@ -81,7 +89,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      * null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -89,14 +97,18 @@ public class Insert extends Operator {
             return null;
         }
         this.called = true;
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (child.hasNext()) {
-            Tuple insert = child.next();
-            try {
-                Database.getBufferPool().insertTuple(transactionId, tableId, insert);
-                this.affectRow++;
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    Database.getBufferPool().insertTuples(transactionId, tableId, batch);
+                    this.affectRow += batch.size();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+                batch.clear();
             }
         }
         Tuple t = new Tuple(td);
@@ -7,17 +7,46 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered in order of first appearance, and the running state
+ * of group g lives at index g of primitive arrays: a long sum and count,
+ * or an int minimum or maximum, whichever the operator needs.  Integer
+ * group values are mapped to group numbers by an open-addressing hash table
+ * of ints, so merging a tuple allocates nothing; group values of other
+ * types go through a HashMap.  AVG is computed once per group, in
+ * {@link #iterator()}.
+ * <p>
+ * SUM_COUNT and SC_AVG split AVG into a partial and a final state: a
+ * SUM_COUNT aggregator returns the sum and count of each group, and an
+ * SC_AVG aggregator fed those tuples adds them up and divides, which gives
+ * the average over all the partial aggregators' input.  The sum does not
+ * fit an IntField, so it is passed on as two: its high and low 32 bits.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    private static final int INITIAL_CAPACITY = 16;
+
     private int gbfield;
     private Type gbfieldType;
     private int afield;
     private Op aggregationOp;
 
-    private GbHandler hanlder;
+    private int numGroups;
+    // open addressing from int group values to group numbers: slots holds
+    // the group number + 1, or 0 if empty; linear probing, at most half full
+    private int[] slotKeys;
+    private int[] slots;
+    // the group value of each group
+    private int[] intGroupVals;
+    private Map<Field, Integer> groupNumbers;
+    private List<Field> groupVals;
+
+    // the running state of each group
+    private long[] sums;
+    private long[] counts;
+    private int[] extremes;
 
     /**
      * Aggregate constructor
@@ -37,31 +66,168 @@ public class IntegerAggregator implements Aggregator {
         this.afield = afield;
         this.aggregationOp = what;
         switch (what) {
-            case MIN -> hanlder = new MinHandler();
-            case MAX -> hanlder = new MaxHandler();
-            case COUNT -> hanlder = new CountHandler();
-            case AVG -> hanlder = new AvgHandler();
-            case SUM -> hanlder = new SumHandler();
-            case SUM_COUNT -> hanlder = new SumCountHandler();
-            case SC_AVG -> hanlder = new ScAvgHandler();
+            case MIN, MAX -> extremes = new int[INITIAL_CAPACITY];
+            case COUNT -> counts = new long[INITIAL_CAPACITY];
+            case SUM -> sums = new long[INITIAL_CAPACITY];
+            case AVG, SUM_COUNT, SC_AVG -> {
+                sums = new long[INITIAL_CAPACITY];
+                counts = new long[INITIAL_CAPACITY];
+            }
             default -> throw new UnsupportedOperationException("operator it don't meet require " + what);
         }
+        if (gbfield != NO_GROUPING && gbfieldtype == Type.INT_TYPE) {
+            slotKeys = new int[2 * INITIAL_CAPACITY];
+            slots = new int[2 * INITIAL_CAPACITY];
+            intGroupVals = new int[INITIAL_CAPACITY];
+        } else if (gbfield != NO_GROUPING) {
+            groupNumbers = new HashMap<>();
+            groupVals = new ArrayList<>();
+        }
+    }
+
+    /**
+     * @return the sum a SUM_COUNT tuple carries from field afield on
+     */
+    static long partialSum(Tuple tup, int afield) {
+        long high = ((IntField) tup.getField(afield)).getValue();
+        int low = ((IntField) tup.getField(afield + 1)).getValue();
+        return high << 32 | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the count a SUM_COUNT tuple carries after its sum from field
+     *         afield on
+     */
+    static int partialCount(Tuple tup, int afield) {
+        return ((IntField) tup.getField(afield + 2)).getValue();
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the group number of an int group value, adding the group if
+     *         it is new
+     */
+    private int intGroup(int key) {
+        int mask = slots.length - 1;
+        int i = hash(key) & mask;
+        while (slots[i] != 0) {
+            if (slotKeys[i] == key)
+                return slots[i] - 1;
+            i = (i + 1) & mask;
+        }
+        int g = newGroup();
+        if (g == intGroupVals.length)
+            intGroupVals = Arrays.copyOf(intGroupVals, 2 * g);
+        intGroupVals[g] = key;
+        slotKeys[i] = key;
+        slots[i] = g + 1;
+        if (2 * numGroups > slots.length)
+            rehash();
+        return g;
     }
 
-    private static final String NO_GROUPING_KEY = "NO_GROUPING_KEY";
+    private void rehash() {
+        int[] oldKeys = slotKeys;
+        int[] oldSlots = slots;
+        slotKeys = new int[2 * oldSlots.length];
+        slots = new int[2 * oldSlots.length];
+        int mask = slots.length - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == 0)
+                continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slotKeys[i] = oldKeys[j];
+            slots[i] = oldSlots[j];
+        }
+    }
+
+    /**
+     * Add a group with an empty running state.
+     *
+     * @return its number
+     */
+    private int newGroup() {
+        int g = numGroups++;
+        if (extremes != null) {
+            if (g == extremes.length)
+                extremes = Arrays.copyOf(extremes, 2 * g);
+            extremes[g] = aggregationOp == Op.MIN ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        }
+        if (sums != null && g == sums.length)
+            sums = Arrays.copyOf(sums, 2 * g);
+        if (counts != null && g == counts.length)
+            counts = Arrays.copyOf(counts, 2 * g);
+        return g;
+    }
+
+    private int group(Tuple tup) {
+        if (gbfield == NO_GROUPING)
+            return numGroups == 0 ? newGroup() : 0;
+        Field gbField = tup.getField(gbfield);
+        if (slots != null)
+            return intGroup(((IntField) gbField).getValue());
+        Integer g = groupNumbers.get(gbField);
+        if (g == null) {
+            g = newGroup();
+            groupNumbers.put(gbField, g);
+            groupVals.add(gbField);
+        }
+        return g;
+    }
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
      * constructor
      *
-     * @param tup the Tuple containing an aggregate field and a group-by field
+     * @param tup the Tuple containing an aggregate field and a group-by field;
+     *            for SC_AVG the aggregate field and the next one hold the
+     *            high and low bits of a sum, and the field after them the
+     *            count it is over
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field field = tup.getField(afield);
-        Field gbField = tup.getField(gbfield);
-        String key = gbField == null ? NO_GROUPING_KEY : gbField.toString();
-        hanlder.handle(key, field);
+        int g = group(tup);
+        if (aggregationOp == Op.COUNT) {
+            // any type of field can be counted
+            counts[g]++;
+            return;
+        }
+        if (aggregationOp == Op.SC_AVG) {
+            sums[g] += partialSum(tup, afield);
+            counts[g] += partialCount(tup, afield);
+            return;
+        }
+        int val = ((IntField) tup.getField(afield)).getValue();
+        switch (aggregationOp) {
+            case MIN -> extremes[g] = Math.min(extremes[g], val);
+            case MAX -> extremes[g] = Math.max(extremes[g], val);
+            case SUM -> sums[g] += val;
+            case AVG, SUM_COUNT -> {
+                sums[g] += val;
+                counts[g]++;
+            }
+            default -> throw new IllegalStateException("impossible to reach here");
+        }
+    }
+
+    /**
+     * @return the aggregate value of group g
+     */
+    private int result(int g) {
+        return switch (aggregationOp) {
+            case MIN, MAX -> extremes[g];
+            case COUNT -> (int) counts[g];
+            case SUM -> (int) sums[g];
+            case AVG, SC_AVG -> (int) (sums[g] / counts[g]);
+            case SUM_COUNT -> (int) (sums[g] >> 32);
+            default -> throw new IllegalStateException("impossible to reach here");
+        };
     }
 
     /**
@@ -70,35 +236,40 @@ public class IntegerAggregator implements Aggregator {
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      * if using group, or a single (aggregateVal) if no grouping. The
      * aggregateVal is determined by the type of aggregate specified in
-     * the constructor.
+     * the constructor. For SUM_COUNT the aggregateVal is the high 32 bits
+     * of the sum, followed by a sumLowVal field with the low 32 bits and a
+     * countVal field.
      */
     public OpIterator iterator() {
         // some code goes here
-        TupleDesc td;
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if (gbfield != NO_GROUPING) {
+            types.add(gbfieldType);
+            names.add("groupVal");
+        }
+        types.add(Type.INT_TYPE);
+        names.add("aggregateVal");
+        if (aggregationOp == Op.SUM_COUNT) {
+            types.add(Type.INT_TYPE);
+            names.add("sumLowVal");
+            types.add(Type.INT_TYPE);
+            names.add("countVal");
+        }
+        TupleDesc td = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
 
         List<Tuple> tuples = new ArrayList<>();
-        Set<Map.Entry<String, Integer>> entrySet = hanlder.getGbResult().entrySet();
-        if (gbfield == NO_GROUPING) {
-            Type[] typeAr = new Type[]{Type.INT_TYPE};
-            String[] fieldAr = new String[1];
-            fieldAr[0] = "aggregateVal";
-            td = new TupleDesc(typeAr, fieldAr);
-            for (Map.Entry<String, Integer> entry : entrySet) {
-                Tuple e = new Tuple(td);
-                e.setField(0, new IntField(entry.getValue()));
-                tuples.add(e);
-            }
-        } else {
-            Type[] typeAr = new Type[]{Type.INT_TYPE, Type.INT_TYPE};
-            String[] fieldAr = new String[]{
-                    "groupVal", "aggregateVal"};
-            td = new TupleDesc(typeAr, fieldAr);
-            for (Map.Entry<String, Integer> entry : entrySet) {
-                Tuple e = new Tuple(td);
-                e.setField(0, new IntField(Integer.parseInt(entry.getKey())));
-                e.setField(1, new IntField(entry.getValue()));
-                tuples.add(e);
+        for (int g = 0; g < numGroups; g++) {
+            Tuple e = new Tuple(td);
+            int i = 0;
+            if (gbfield != NO_GROUPING)
+                e.setField(i++, slots != null ? new IntField(intGroupVals[g]) : groupVals.get(g));
+            e.setField(i++, new IntField(result(g)));
+            if (aggregationOp == Op.SUM_COUNT) {
+                e.setField(i++, new IntField((int) sums[g]));
+                e.setField(i, new IntField((int) counts[g]));
             }
+            tuples.add(e);
         }
 
         return new TupleIterator(td, tuples);
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,17 +10,31 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loops join: the outer child is read in blocks of as
+ * many tuples as fit in a memory budget of a few pages, and the inner child
+ * is scanned once per block.  Matches are produced as they are found, so the
+ * first tuple is available after reading one block, and memory use does not
+ * depend on the size of the inputs or of the result.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** The default memory budget for a block of outer tuples, in pages */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     private JoinPredicate joinPredicate;
     private OpIterator child1;
     private OpIterator child2;
     private TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private Iterator<Tuple> it;
+    private final int blockTuples;
+    private final List<Tuple> block = new ArrayList<>();
+    // the inner tuple being matched against the block, and the next block
+    // tuple to compare it with
+    private transient Tuple t2;
+    private transient int blockPos;
+    private transient boolean innerScanned;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -33,11 +48,23 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor with an explicit memory budget for the outer blocks.
+     *
+     * @param blockPages
+     *            how many pages of outer tuples to hold at a time
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         // some code goes here
         this.joinPredicate = p;
         this.child1 = child1;
         this.child2 = child2;
         this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        int tupleSize = Math.max(1, child1.getTupleDesc().getSize());
+        this.blockTuples = Math.max(1, blockPages * BufferPool.getPageSize() / tupleSize);
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -80,42 +107,50 @@ public class Join extends Operator {
         // some code goes here
         child1.open();
         child2.open();
-        int t1numFields = child1.getTupleDesc().numFields();
-//        todo 算法复杂度过高待优化
-        while (child1.hasNext()) {
-            Tuple t1 = child1.next();
-            while (child2.hasNext()) {
-                Tuple t2 = child2.next();
-                if (joinPredicate.filter(t1, t2)) {
-                    Tuple tuple = new Tuple(td);
-                    for (int i = 0; i < td.numFields(); i++) {
-                        if (i < t1numFields) {
-                            tuple.setField(i, t1.getField(i));
-                        } else {
-                            tuple.setField(i, t2.getField(i - t1numFields));
-                        }
-                    }
-                    childTups.add(tuple);
-                }
-            }
-            child2.rewind();
-            child2.open();
-        }
-        it = childTups.iterator();
+        block.clear();
+        t2 = null;
+        innerScanned = false;
         super.open();
     }
 
     public void close() {
         // some code goes here
         super.close();
-        it = null;
+        block.clear();
+        t2 = null;
         child1.close();
         child2.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        it = childTups.iterator();
+        child1.rewind();
+        child2.rewind();
+        block.clear();
+        t2 = null;
+        innerScanned = false;
+    }
+
+    /**
+     * Read the next block of outer tuples, and start a new scan of the
+     * inner child for it.
+     *
+     * @return false if the outer child is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockTuples && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        if (block.isEmpty()) {
+            return false;
+        }
+        if (innerScanned) {
+            child2.rewind();
+        }
+        innerScanned = true;
+        t2 = null;
+        return true;
     }
 
     /**
@@ -138,10 +173,33 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (it != null && it.hasNext()) {
-            return it.next();
+        while (true) {
+            while (t2 != null && blockPos < block.size()) {
+                Tuple t1 = block.get(blockPos++);
+                if (joinPredicate.filter(t1, t2)) {
+                    return merge(t1, t2);
+                }
+            }
+            if (!block.isEmpty() && child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+            } else if (!loadBlock()) {
+                return null;
+            }
         }
-        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int t1numFields = t1.getTupleDesc().numFields();
+        Tuple tuple = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (i < t1numFields) {
+                tuple.setField(i, t1.getField(i));
+            } else {
+                tuple.setField(i, t2.getField(i - t1numFields));
+            }
+        }
+        return tuple;
     }
 
     @Override
@@ -153,7 +211,8 @@ public class Join extends Operator {
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-
+        this.child1 = children[0];
+        this.child2 = children[1];
     }
 
 }
@@ -0,0 +1,88 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit implements a relational LIMIT: it returns the first n tuples of its
+ * child, and stops reading the child after them.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final int limit;
+    private int count;
+
+    /**
+     * Constructor accepts the number of tuples to return and a child
+     * operator to read them from
+     *
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the child operator
+     * @throws IllegalArgumentException if limit is negative
+     */
+    public Limit(int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.limit = limit;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        count = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        count = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation.
+     *
+     * @return The next tuple of the child, or null once limit tuples have
+     *         been returned or the child is exhausted
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (count >= limit || !child.hasNext())
+            return null;
+        count++;
+        return child.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
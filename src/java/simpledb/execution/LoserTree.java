@@ -0,0 +1,93 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges k sorted inputs with a tree of losers: each internal node keeps
+ * the input that lost the match played there, and the overall winner is
+ * kept above the root.  Taking the next tuple replays only the matches on
+ * the path from the winner's leaf to the root, so it costs log2(k)
+ * comparisons.  Ties go to the input with the lower index, which keeps the
+ * merge stable when the inputs are runs in input order.
+ */
+class LoserTree {
+
+    private final List<OpIterator> inputs;
+    private final Comparator<Tuple> comparator;
+    private final int k;
+    // the current tuple of each input; null once the input is exhausted
+    private final Tuple[] heads;
+    // losers[0] is the winner; losers[1..k-1] are the losers of the
+    // internal nodes.  Index k stands for a virtual input smaller than all
+    // others, used only while the tree is built
+    private final int[] losers;
+
+    /**
+     * @param inputs open iterators, each sorted according to comparator
+     */
+    LoserTree(List<OpIterator> inputs, Comparator<Tuple> comparator)
+            throws DbException, TransactionAbortedException {
+        this.inputs = inputs;
+        this.comparator = comparator;
+        this.k = inputs.size();
+        this.heads = new Tuple[k];
+        this.losers = new int[Math.max(1, k)];
+        for (int i = 0; i < k; i++) {
+            heads[i] = inputs.get(i).hasNext() ? inputs.get(i).next() : null;
+            losers[i] = k;
+        }
+        for (int i = k - 1; i >= 0; i--) {
+            replay(i);
+        }
+    }
+
+    /**
+     * @return true if input a should come out before input b
+     */
+    private boolean before(int a, int b) {
+        if (a == k)
+            return true;
+        if (b == k)
+            return false;
+        if (heads[a] == null)
+            return false;
+        if (heads[b] == null)
+            return true;
+        int c = comparator.compare(heads[a], heads[b]);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    /**
+     * Replay the matches from the leaf of input s up to the root.
+     */
+    private void replay(int s) {
+        for (int t = (s + k) / 2; t > 0; t /= 2) {
+            if (before(losers[t], s)) {
+                int tmp = s;
+                s = losers[t];
+                losers[t] = tmp;
+            }
+        }
+        losers[0] = s;
+    }
+
+    boolean hasNext() {
+        return k > 0 && heads[losers[0]] != null;
+    }
+
+    Tuple next() throws DbException, TransactionAbortedException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int w = losers[0];
+        Tuple t = heads[w];
+        heads[w] = inputs.get(w).hasNext() ? inputs.get(w).next() : null;
+        replay(w);
+        return t;
+    }
+}
@@ -0,0 +1,216 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once over tuples grouped by
+ * any number of fields.  Each aggregate is over an IntField, except COUNT,
+ * which counts fields of any type.
+ * <p>
+ * As in {@link IntegerAggregator}, groups are numbered in order of first
+ * appearance and the running state of group g lives at index g of
+ * primitive arrays, one set of arrays per aggregate.  Group values are
+ * mapped to group numbers by a HashMap keyed on the list of grouping
+ * fields.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldTypes;
+    private final int[] afields;
+    private final Op[] ops;
+
+    private int numGroups;
+    private int capacity = INITIAL_CAPACITY;
+    private final Map<List<Field>, Integer> groupNumbers = new HashMap<>();
+    // the group values of each group
+    private final List<List<Field>> groupVals = new ArrayList<>();
+
+    // the running state of each group, for each aggregate; null if the
+    // aggregate does not need it
+    private final long[][] sums;
+    private final long[][] counts;
+    private final int[][] extremes;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields     the 0-based indexes of the group-by fields in the
+     *                     tuple; empty if there is no grouping
+     * @param gbfieldtypes the types of the group-by fields
+     * @param afields      the 0-based indexes of the aggregate fields in the tuple
+     * @param whats        the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException if the arrays do not match up, or
+     *                                  there is no aggregate
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] whats) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != whats.length)
+            throw new IllegalArgumentException("a type is needed for each group-by field and an operator for each aggregate field");
+        if (afields.length == 0)
+            throw new IllegalArgumentException("no aggregate to compute");
+        this.gbfields = gbfields.clone();
+        this.gbfieldTypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.ops = whats.clone();
+        sums = new long[ops.length][];
+        counts = new long[ops.length][];
+        extremes = new int[ops.length][];
+        for (int a = 0; a < ops.length; a++) {
+            switch (ops[a]) {
+                case MIN, MAX -> extremes[a] = new int[capacity];
+                case COUNT -> counts[a] = new long[capacity];
+                case SUM -> sums[a] = new long[capacity];
+                case AVG, SUM_COUNT, SC_AVG -> {
+                    sums[a] = new long[capacity];
+                    counts[a] = new long[capacity];
+                }
+                default -> throw new UnsupportedOperationException("operator it don't meet require " + ops[a]);
+            }
+        }
+    }
+
+    /**
+     * Add a group with an empty running state.
+     *
+     * @return its number
+     */
+    private int newGroup() {
+        int g = numGroups++;
+        if (g == capacity) {
+            capacity *= 2;
+            for (int a = 0; a < ops.length; a++) {
+                if (sums[a] != null)
+                    sums[a] = Arrays.copyOf(sums[a], capacity);
+                if (counts[a] != null)
+                    counts[a] = Arrays.copyOf(counts[a], capacity);
+                if (extremes[a] != null)
+                    extremes[a] = Arrays.copyOf(extremes[a], capacity);
+            }
+        }
+        for (int a = 0; a < ops.length; a++) {
+            if (extremes[a] != null)
+                extremes[a][g] = ops[a] == Op.MIN ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        }
+        return g;
+    }
+
+    private int group(Tuple tup) {
+        if (gbfields.length == 0)
+            return numGroups == 0 ? newGroup() : 0;
+        Field[] key = new Field[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            key[i] = tup.getField(gbfields[i]);
+        List<Field> k = Arrays.asList(key);
+        Integer g = groupNumbers.get(k);
+        if (g == null) {
+            g = newGroup();
+            groupNumbers.put(k, g);
+            groupVals.add(k);
+        }
+        return g;
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup the Tuple containing the aggregate fields and the group-by
+     *            fields; for SC_AVG the aggregate field and the next one
+     *            hold the high and low bits of a sum, and the field after
+     *            them the count it is over
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g = group(tup);
+        for (int a = 0; a < ops.length; a++) {
+            if (ops[a] == Op.COUNT) {
+                // any type of field can be counted
+                counts[a][g]++;
+                continue;
+            }
+            if (ops[a] == Op.SC_AVG) {
+                sums[a][g] += IntegerAggregator.partialSum(tup, afields[a]);
+                counts[a][g] += IntegerAggregator.partialCount(tup, afields[a]);
+                continue;
+            }
+            int val = ((IntField) tup.getField(afields[a])).getValue();
+            switch (ops[a]) {
+                case MIN -> extremes[a][g] = Math.min(extremes[a][g], val);
+                case MAX -> extremes[a][g] = Math.max(extremes[a][g], val);
+                case SUM -> sums[a][g] += val;
+                case AVG, SUM_COUNT -> {
+                    sums[a][g] += val;
+                    counts[a][g]++;
+                }
+                default -> throw new IllegalStateException("impossible to reach here");
+            }
+        }
+    }
+
+    /**
+     * @return the value of aggregate a for group g
+     */
+    private int result(int a, int g) {
+        return switch (ops[a]) {
+            case MIN, MAX -> extremes[a][g];
+            case COUNT -> (int) counts[a][g];
+            case SUM -> (int) sums[a][g];
+            case SUM_COUNT -> (int) (sums[a][g] >> 32);
+            case AVG, SC_AVG -> (int) (sums[a][g] / counts[a][g]);
+        };
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples hold the group-by fields, in the
+     * order given to the constructor, followed by the value of each
+     * aggregate. For SUM_COUNT that is the high 32 bits of the sum,
+     * followed by its low 32 bits and the count.
+     */
+    public OpIterator iterator() {
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < gbfields.length; i++) {
+            types.add(gbfieldTypes[i]);
+            names.add("groupVal" + i);
+        }
+        for (int a = 0; a < ops.length; a++) {
+            types.add(Type.INT_TYPE);
+            names.add("aggregateVal" + a);
+            if (ops[a] == Op.SUM_COUNT) {
+                types.add(Type.INT_TYPE);
+                names.add("sumLowVal" + a);
+                types.add(Type.INT_TYPE);
+                names.add("countVal" + a);
+            }
+        }
+        TupleDesc td = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+
+        List<Tuple> tuples = new ArrayList<>();
+        for (int g = 0; g < numGroups; g++) {
+            Tuple e = new Tuple(td);
+            int i = 0;
+            if (gbfields.length > 0) {
+                for (Field f : groupVals.get(g))
+                    e.setField(i++, f);
+            }
+            for (int a = 0; a < ops.length; a++) {
+                e.setField(i++, new IntField(result(a, g)));
+                if (ops[a] == Op.SUM_COUNT) {
+                    e.setField(i++, new IntField((int) sums[a][g]));
+                    e.setField(i++, new IntField((int) counts[a][g]));
+                }
+            }
+            tuples.add(e);
+        }
+
+        return new TupleIterator(td, tuples);
+    }
+}
@@ -2,7 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,10 +10,22 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It is an external merge sort.  Child tuples are collected until they fill
+ * the memory budget; each such run is sorted and written to a temporary
+ * heap file.  If there are more runs than the budget has pages for (one page
+ * per run being merged), they are merged into fewer, longer runs first.
+ * The last merge combines the remaining runs through a {@link LoserTree}
+ * and streams its output from fetchNext.  An input that fits in the budget
+ * is sorted in memory and never written out.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for the tuples of a run, in pages. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
     private OpIterator child;
     private final TupleDesc td;
     private final List<Tuple> childTups = new ArrayList<>();
@@ -21,6 +33,12 @@ public class OrderBy extends Operator {
     private final String orderByFieldName;
     private Iterator<Tuple> it;
     private final boolean asc;
+    private final int memoryTuples;
+    private final int fanIn;
+    private final TupleComparator comparator;
+    // the sorted runs on disk, and the merge of them being read
+    private final List<SpillFile> runs = new ArrayList<>();
+    private transient LoserTree merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,11 +51,26 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node with an explicit memory budget.
+     *
+     * @param memoryPages
+     *            pages worth of tuples to sort in memory at a time; also the
+     *            number of runs merged at a time, but at least two
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, int memoryPages) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.comparator = new TupleComparator(orderbyField, asc);
+        int tupleSize = Math.max(1, td.getSize());
+        this.memoryTuples = Math.max(1, memoryPages * BufferPool.getPageSize() / tupleSize);
+        this.fanIn = Math.max(2, memoryPages);
     }
 
     public boolean isASC()
@@ -62,21 +95,96 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        childTups.clear();
+        discardRuns();
+        // sort the child a memory load at a time
+        while (child.hasNext()) {
             childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            if (childTups.size() >= memoryTuples)
+                spillRun();
+        }
+        if (runs.isEmpty()) {
+            childTups.sort(comparator);
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty())
+                spillRun();
+            while (runs.size() > fanIn)
+                mergePass();
+            startMerge();
+        }
         super.open();
     }
 
+    /**
+     * Sort the tuples in memory and write them out as a run.
+     */
+    private void spillRun() throws DbException {
+        childTups.sort(comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : childTups)
+            run.add(t);
+        run.flush();
+        runs.add(run);
+        childTups.clear();
+    }
+
+    /**
+     * Merge the runs fanIn at a time into longer runs.
+     */
+    private void mergePass() throws DbException, TransactionAbortedException {
+        List<SpillFile> merged = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += fanIn) {
+            List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+            LoserTree tree = new LoserTree(openRuns(group), comparator);
+            SpillFile run = new SpillFile(td);
+            while (tree.hasNext())
+                run.add(tree.next());
+            run.flush();
+            for (SpillFile f : group)
+                f.delete();
+            merged.add(run);
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    private static List<OpIterator> openRuns(List<SpillFile> runs)
+            throws DbException, TransactionAbortedException {
+        List<OpIterator> its = new ArrayList<>();
+        for (SpillFile run : runs) {
+            OpIterator it = run.iterator();
+            it.open();
+            its.add(it);
+        }
+        return its;
+    }
+
+    /**
+     * Start the final merge, whose output fetchNext returns.
+     */
+    private void startMerge() throws DbException, TransactionAbortedException {
+        merge = new LoserTree(openRuns(runs), comparator);
+    }
+
+    private void discardRuns() {
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+        merge = null;
+    }
+
     public void close() {
         super.close();
         it = null;
+        discardRuns();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (runs.isEmpty())
+            it = childTups.iterator();
+        else
+            startMerge();
     }
 
     /**
@@ -86,7 +194,11 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException,
+            DbException, TransactionAbortedException {
+        if (merge != null) {
+            return merge.hasNext() ? merge.next() : null;
+        }
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -105,25 +217,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-
-}
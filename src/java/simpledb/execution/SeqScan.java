@@ -59,6 +59,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -0,0 +1,244 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The SortMergeJoin operator joins two children that are both sorted in
+ * ascending order on their join fields, e.g. scans of B+ trees keyed on
+ * them, or {@link OrderBy} operators.  Each child is read once, in order.
+ * <p>
+ * For an equality predicate, the inner tuples of one key are held in memory
+ * while the outer tuples with that key are joined with them.  For a range
+ * predicate, the tuples of one child that match a tuple of the other form a
+ * prefix of that child, which grows as the other child advances; the prefix
+ * read so far is held in memory.  The child whose matches form the prefix
+ * is the inner one for GREATER_THAN(_OR_EQ), and the outer one for
+ * LESS_THAN(_OR_EQ).
+ * <p>
+ * The output is sorted on the join field of the child that is not buffered,
+ * which for EQUALS means on both join fields.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1;
+    private OpIterator child2;
+    private final TupleDesc td;
+    // true if child1 drives the merge and child2 is buffered
+    private final boolean outerDrives;
+    // the buffered tuples: the inner tuples of the current key for EQUALS,
+    // or the matching prefix of the buffered child for a range predicate
+    private final List<Tuple> buffer = new ArrayList<>();
+    private transient Field bufferKey;
+    // the first tuple of the buffered child not yet in the buffer
+    private transient Tuple lookahead;
+    private transient Tuple driver;
+    private transient int bufferPos;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on; both children must be sorted in ascending order on their
+     * join fields
+     *
+     * @param p
+     *            The predicate to use to join the children; one of EQUALS,
+     *            LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN or GREATER_THAN_OR_EQ
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException if the predicate is not one of the above
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this.outerDrives = switch (p.getOperator()) {
+            case EQUALS, GREATER_THAN, GREATER_THAN_OR_EQ -> true;
+            case LESS_THAN, LESS_THAN_OR_EQ -> false;
+            default -> throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        };
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return td.getFieldName(pred.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return td.getFieldName(child1.getTupleDesc().numFields() + pred.getField2());
+    }
+
+    /**
+     * @return the name of the field the output is sorted on, as for
+     *         {@link #getJoinField1Name} or {@link #getJoinField2Name}
+     */
+    public String getSortFieldName() {
+        return outerDrives ? getJoinField1Name() : getJoinField2Name();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    private void reset() {
+        buffer.clear();
+        bufferKey = null;
+        lookahead = null;
+        driver = null;
+        bufferPos = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        child1.close();
+        child2.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private OpIterator drivingChild() {
+        return outerDrives ? child1 : child2;
+    }
+
+    private OpIterator bufferedChild() {
+        return outerDrives ? child2 : child1;
+    }
+
+    private Field driverKey(Tuple t) {
+        return t.getField(outerDrives ? pred.getField1() : pred.getField2());
+    }
+
+    private Field bufferedKey(Tuple t) {
+        return t.getField(outerDrives ? pred.getField2() : pred.getField1());
+    }
+
+    /**
+     * @return the next tuple of the buffered child, without consuming it,
+     *         or null if it is exhausted
+     */
+    private Tuple peek() throws DbException, TransactionAbortedException {
+        if (lookahead == null && bufferedChild().hasNext()) {
+            lookahead = bufferedChild().next();
+        }
+        return lookahead;
+    }
+
+    /**
+     * Fill the buffer with the tuples of the buffered child that match the
+     * new driving tuple.
+     */
+    private void advanceBuffer() throws DbException, TransactionAbortedException {
+        Field key = driverKey(driver);
+        if (pred.getOperator() == Predicate.Op.EQUALS) {
+            if (bufferKey != null && bufferKey.compare(Predicate.Op.EQUALS, key)) {
+                return;
+            }
+            buffer.clear();
+            bufferKey = key;
+            Tuple t;
+            while ((t = peek()) != null && bufferedKey(t).compare(Predicate.Op.LESS_THAN_OR_EQ, key)) {
+                if (bufferedKey(t).compare(Predicate.Op.EQUALS, key)) {
+                    buffer.add(t);
+                }
+                lookahead = null;
+            }
+            return;
+        }
+        // the prefix of the buffered child that the driving key is past
+        Tuple t;
+        while ((t = peek()) != null && matches(t)) {
+            buffer.add(t);
+            lookahead = null;
+        }
+    }
+
+    private boolean matches(Tuple buffered) {
+        return outerDrives ? pred.filter(driver, buffered) : pred.filter(buffered, driver);
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  The driving tuple is joined with every buffered tuple in
+     * turn; then the next driving tuple is read and the buffer brought up to
+     * date with it.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (driver != null && bufferPos < buffer.size()) {
+                Tuple b = buffer.get(bufferPos++);
+                return outerDrives ? merge(driver, b) : merge(b, driver);
+            }
+            if (!drivingChild().hasNext()) {
+                return null;
+            }
+            driver = drivingChild().next();
+            bufferPos = 0;
+            advanceBuffer();
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int t1numFields = t1.getTupleDesc().numFields();
+        Tuple tuple = new Tuple(td);
+        for (int i = 0; i < t1numFields; i++) {
+            tuple.setField(i, t1.getField(i));
+        }
+        for (int i = t1numFields; i < td.numFields(); i++) {
+            tuple.setField(i, t2.getField(i - t1numFields));
+        }
+        return tuple;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{child1, child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -0,0 +1,143 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary heap file that an operator writes tuples to when they don't
+ * fit in its memory budget, and reads back later.  No other transaction can
+ * see the file, so its pages are written and read directly rather than
+ * through the buffer pool.  The file is registered in the catalog only so
+ * that HeapPage can find its TupleDesc; {@link #delete} removes it again.
+ */
+class SpillFile {
+
+    private final HeapFile file;
+    private final TupleDesc td;
+    private HeapPage page;
+    private int numPages;
+    private int numTuples;
+
+    SpillFile(TupleDesc td) throws DbException {
+        try {
+            File f = File.createTempFile("spill", ".dat");
+            f.deleteOnExit();
+            this.file = new HeapFile(f, td);
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+        this.td = td;
+        Database.getCatalog().addTable(file);
+    }
+
+    /**
+     * Append a copy of t; the copy keeps the RecordId of t, which may belong
+     * to a page in the buffer pool, from being overwritten.
+     */
+    void add(Tuple t) throws DbException {
+        if (page == null || page.getNumEmptySlots() == 0) {
+            flush();
+            try {
+                page = new HeapPage(new HeapPageId(file.getId(), numPages), HeapPage.createEmptyPageData());
+            } catch (IOException e) {
+                throw new DbException("could not create spill page: " + e.getMessage());
+            }
+        }
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            copy.setField(i, t.getField(i));
+        }
+        page.insertTuple(copy);
+        numTuples++;
+    }
+
+    /**
+     * Write out the last, partly full page.  Must be called before the
+     * tuples are read back.
+     */
+    void flush() throws DbException {
+        if (page == null) {
+            return;
+        }
+        try {
+            file.writePage(page);
+        } catch (IOException e) {
+            throw new DbException("could not write spill page: " + e.getMessage());
+        }
+        page = null;
+        numPages++;
+    }
+
+    int size() {
+        return numTuples;
+    }
+
+    /**
+     * @return an iterator over the flushed tuples, in the order they were added
+     */
+    OpIterator iterator() {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private int pageNo;
+            private transient Iterator<Tuple> tuples;
+
+            public void open() {
+                pageNo = 0;
+                tuples = null;
+            }
+
+            public boolean hasNext() throws DbException {
+                while (tuples == null || !tuples.hasNext()) {
+                    if (pageNo >= numPages) {
+                        return false;
+                    }
+                    HeapPage p = (HeapPage) file.readPage(new HeapPageId(file.getId(), pageNo++));
+                    if (p == null) {
+                        throw new DbException("could not read spill page " + (pageNo - 1));
+                    }
+                    tuples = p.iterator();
+                }
+                return true;
+            }
+
+            public Tuple next() throws DbException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return tuples.next();
+            }
+
+            public void rewind() {
+                open();
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public void close() {
+                tuples = null;
+            }
+        };
+    }
+
+    /**
+     * Remove the file from the catalog and from disk, closing it first so
+     * that its descriptor does not outlive it.
+     */
+    void delete() {
+        Database.getCatalog().removeTable(file.getId());
+        file.close();
+        file.getFile().delete();
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * TopN implements an ORDER BY followed by a LIMIT: it returns the first n
+ * tuples of the child in the order {@link OrderBy} would return them.  Only
+ * the n best tuples seen so far are kept, in a heap whose root is the worst
+ * of them, so memory is O(n) and the child is read in O(c log n) time.
+ * Ties are broken by the order of the child, as OrderBy's sort is stable.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int orderByField;
+    private final String orderByFieldName;
+    private final boolean asc;
+    private final int limit;
+    private final List<Tuple> top = new ArrayList<>();
+    private Iterator<Tuple> it;
+
+    /**
+     * A tuple, with its position in the child to break ties.
+     */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException if limit is negative
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.orderByFieldName = td.getFieldName(orderbyField);
+        this.asc = asc;
+        this.limit = limit;
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getOrderByField() {
+        return orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return orderByFieldName;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> byField = new TupleComparator(orderByField, asc);
+        Comparator<Entry> order = (a, b) -> {
+            int c = byField.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // the root of the heap is the worst of the best tuples so far
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)), order.reversed());
+        long seq = 0;
+        while (child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < limit) {
+                heap.add(e);
+            } else if (limit > 0 && order.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        List<Entry> sorted = new ArrayList<>(heap);
+        sorted.sort(order);
+        top.clear();
+        for (Entry e : sorted)
+            top.add(e.tuple);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top.clear();
+        child.close();
+    }
+
+    public void rewind() {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the first limit tuples of
+     * the child in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -32,6 +32,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final DbFileChannel channel;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +47,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new DbFileChannel(f);
 	}
 
 	/**
@@ -87,49 +89,34 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = channel.read(0, BTreeRootPtrPage.getPageSize());
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = channel.read(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the offset in the file of the page with the given number;
+	 * page 0 is the root pointer page, which is smaller than the others
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,15 +128,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(pageOffset(page.getId().getPageNumber()), data);
 		}
 	}
 	
@@ -188,7 +171,22 @@ public class BTreeFile implements DbFile {
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if (pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
+			}
+		}
+		if (e == null) {
+			throw new DbException("empty internal page " + pid);
+		}
+		return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
 	}
 	
 	/**
@@ -832,13 +830,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(0, emptyRootPtrData);
+				channel.write(pageOffset(1), emptyLeafData);
 			}
 		}
 
@@ -894,11 +889,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(pageOffset(numPages() + 1), emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -929,10 +921,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
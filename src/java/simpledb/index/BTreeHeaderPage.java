@@ -23,6 +23,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -273,6 +274,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
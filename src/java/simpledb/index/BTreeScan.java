@@ -3,8 +3,8 @@ package simpledb.index;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
 import simpledb.execution.IndexPredicate;
-import simpledb.execution.OpIterator;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -15,9 +15,10 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate.  It can be reopened with a different
+ * predicate, which lets a join probe the index once per outer tuple.
  */
-public class BTreeScan implements OpIterator {
+public class BTreeScan implements IndexOpIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -26,6 +27,7 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -71,6 +73,14 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate the scan matches, or null if it returns
+	 *       all tuples
+	 * */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -86,13 +96,9 @@ public class BTreeScan implements OpIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-		}
-		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
-		}
+		this.it = newIterator();
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -110,6 +116,15 @@ public class BTreeScan implements OpIterator {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
 
+	private DbFileIterator newIterator() {
+		if(ipred == null) {
+			return Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		}
+		else {
+			return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+		}
+	}
+
 	public void open() throws DbException, TransactionAbortedException {
 		if (isOpen)
 			throw new DbException("double open on one OpIterator.");
@@ -118,6 +133,24 @@ public class BTreeScan implements OpIterator {
 		isOpen = true;
 	}
 
+	/**
+	 * Open the scan with a new predicate, which replaces the one given to
+	 * the constructor.
+	 */
+	public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		this.ipred = ipred;
+		this.it = newIterator();
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+
 	/**
 	 * Returns the TupleDesc with field names from the underlying BTreeFile,
 	 * prefixed with the tableAlias string from the constructor. This prefix
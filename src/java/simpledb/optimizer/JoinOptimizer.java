@@ -3,6 +3,10 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -18,6 +22,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
+    // statistics used to cost index lookups; replaced by the ones given to orderJoins
+    private Map<String, TableStats> tableStats = TableStats.getStatsMap();
 
     /**
      * Constructor
@@ -68,13 +74,24 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
+        if (lj.probeIndex) {
+            j = instantiateIndexJoin(p, plan1, plan2);
+            if (j != null)
+                return j;
+        }
+
+        if (lj.mergeJoin) {
+            return instantiateMergeJoin(lj, p, plan1, plan2);
+        }
+
         if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
                 // fall back on regular join
                 Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
+                java.lang.reflect.Constructor<?> ct = c.getConstructor(JoinPredicate.class,
+                        OpIterator.class, OpIterator.class);
                 j = (OpIterator) ct
                         .newInstance(new Object[]{p, plan1, plan2});
             } catch (Exception e) {
@@ -88,6 +105,87 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Build an index nested-loop join that probes the B+ tree scanned by
+     * plan2.  Filters over the scan, and the predicate of the scan itself,
+     * are applied to the output of the join instead.
+     *
+     * @return the join, or null if plan2 is not a scan of a B+ tree keyed
+     * on the join field
+     */
+    private static OpIterator instantiateIndexJoin(JoinPredicate p,
+                                                   OpIterator plan1, OpIterator plan2) {
+        List<Predicate> residual = new ArrayList<>();
+        OpIterator inner = plan2;
+        while (inner instanceof Filter) {
+            residual.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        if (!(inner instanceof BTreeScan))
+            return null;
+        BTreeScan scan = (BTreeScan) inner;
+        BTreeFile index = scanIndex(scan);
+        if (index.keyField() != p.getField2())
+            return null;
+        IndexPredicate ipred = scan.getIndexPredicate();
+        if (ipred != null)
+            residual.add(new Predicate(index.keyField(), ipred.getOp(), ipred.getField()));
+
+        OpIterator j = new IndexNestedLoopJoin(p, plan1, scan);
+        int shift = plan1.getTupleDesc().numFields();
+        for (Predicate r : residual) {
+            j = new Filter(new Predicate(r.getField() + shift, r.getOp(), r.getOperand()), j);
+        }
+        return j;
+    }
+
+    private static BTreeFile scanIndex(BTreeScan scan) {
+        return (BTreeFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(scan.getTableName()));
+    }
+
+    /**
+     * Build a sort-merge join, sorting whichever input isn't already in
+     * order on its join field.
+     */
+    private static OpIterator instantiateMergeJoin(LogicalJoinNode lj, JoinPredicate p,
+                                                   OpIterator plan1, OpIterator plan2) {
+        if (!isSortedOn(plan1, lj.f1QuantifiedName))
+            plan1 = new OrderBy(p.getField1(), true, plan1);
+        if (!isSortedOn(plan2, lj.f2QuantifiedName))
+            plan2 = new OrderBy(p.getField2(), true, plan2);
+        return new SortMergeJoin(p, plan1, plan2);
+    }
+
+    /**
+     * Return true if the tuples of a physical plan come out in ascending
+     * order of the given field, so that a merge join or an ORDER BY on it
+     * needs no sort.
+     *
+     * @param plan  The plan
+     * @param field The name of the field in the TupleDesc of plan
+     */
+    public static boolean isSortedOn(OpIterator plan, String field) {
+        if (plan instanceof BTreeScan) {
+            BTreeFile index = scanIndex((BTreeScan) plan);
+            return field.equals(plan.getTupleDesc().getFieldName(index.keyField()));
+        } else if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.isASC() && field.equals(o.getOrderFieldName());
+        } else if (plan instanceof Filter) {
+            return isSortedOn(((Filter) plan).getChildren()[0], field);
+        } else if (plan instanceof IndexNestedLoopJoin) {
+            // the matches of each outer tuple come out together
+            return isSortedOn(((IndexNestedLoopJoin) plan).getChildren()[0], field);
+        } else if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            if (j.getJoinPredicate().getOperator() == Predicate.Op.EQUALS)
+                return field.equals(j.getJoinField1Name()) || field.equals(j.getJoinField2Name());
+            return field.equals(j.getSortFieldName());
+        }
+        return false;
+    }
+
     /**
      * Estimate the cost of a join.
      * <p>
@@ -110,6 +208,20 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true,
+                estimateTupleSize(j.t1Alias, true, null));
+    }
+
+    /**
+     * @param innerIsTable true if the right-hand side is a base table, which
+     *                     could be probed through an index, rather than the
+     *                     result of other joins
+     * @param tupleSize1   estimated width in bytes of the left-hand tuples
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+                                    double cost1, double cost2, boolean innerIsTable,
+                                    int tupleSize1) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -119,10 +231,156 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            // a block nested-loops join scans the right-hand side once for
+            // every block of left-hand tuples
+            double cost = cost1
+                    + cost2 * Math.ceil(card1 / estimateBlockTuples(tupleSize1))
+                    + (double) card1 * card2;
+            if (innerIsTable) {
+                cost = Math.min(cost, estimateIndexJoinCost(j, card1, cost1));
+            }
+            return cost;
         }
     }
 
+    /**
+     * @return the number of left-hand tuples of the given width {@link Join}
+     * holds in a block
+     */
+    private double estimateBlockTuples(int tupleSize) {
+        return Math.max(1, Join.DEFAULT_BLOCK_PAGES * BufferPool.getPageSize() / Math.max(1, tupleSize));
+    }
+
+    /**
+     * Estimate the width of the tuples of one input of a join.
+     *
+     * @param alias   the alias of the input's table, if it is a base table
+     * @param isTable true if the input is the base table alias, false if it
+     *                is the result of the joins in plan
+     * @param plan    the joins that produce the input, if it is not a table
+     * @return the summed width in bytes of the tables the input's tuples
+     * are made of
+     */
+    private int estimateTupleSize(String alias, boolean isTable, List<LogicalJoinNode> plan) {
+        Set<String> aliases = new HashSet<>();
+        if (isTable) {
+            aliases.add(alias);
+        } else {
+            for (LogicalJoinNode j : plan) {
+                aliases.add(j.t1Alias);
+                if (j.t2Alias != null)
+                    aliases.add(j.t2Alias);
+            }
+        }
+        int size = 0;
+        for (String a : aliases) {
+            Integer tableId = p.getTableId(a);
+            if (tableId != null)
+                size += Database.getCatalog().getTupleDesc(tableId).getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the cost of an index nested-loop join: one scan of the
+     * left-hand side, and a lookup in the B+ tree of the right-hand table
+     * for each of its tuples.
+     *
+     * @return the cost, or Double.MAX_VALUE if the right-hand table has no
+     * index on its join field that can answer the join predicate
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1) {
+        if (j instanceof LogicalSubplanJoinNode || j.p == Predicate.Op.NOT_EQUALS
+                || j.p == Predicate.Op.LIKE)
+            return Double.MAX_VALUE;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.MAX_VALUE;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof BTreeFile))
+            return Double.MAX_VALUE;
+        BTreeFile index = (BTreeFile) file;
+        TableStats s = tableStats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null || !j.f2PureName.equals(index.getTupleDesc().getFieldName(index.keyField())))
+            return Double.MAX_VALUE;
+
+        // an equality lookup reads the leaf pages of one key; a range
+        // lookup is assumed to read half of the table
+        double sel = j.p == Predicate.Op.EQUALS ? 1.0 / Math.max(1, s.totalTuples()) : 0.5;
+        return cost1 + card1 * s.estimateIndexScanCost(sel);
+    }
+
+    /**
+     * Estimate the cost of sorting card tuples: about card * log2(card)
+     * comparisons.
+     */
+    private static double estimateSortCost(int card) {
+        if (card <= 1)
+            return card;
+        return card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Estimate the cost of a sort-merge join: one scan of each side, a sort
+     * of each side not already in order, and one pass over both.  For a
+     * range predicate, about half of all pairs match and are emitted.
+     *
+     * @param sorted1 true if the left-hand side is in order on its join field
+     * @param sorted2 true if the right-hand side is in order on its join field
+     */
+    private double estimateMergeJoinCost(LogicalJoinNode j, int card1, int card2,
+                                         double cost1, double cost2,
+                                         boolean sorted1, boolean sorted2) {
+        if (j instanceof LogicalSubplanJoinNode || j.p == Predicate.Op.NOT_EQUALS
+                || j.p == Predicate.Op.LIKE)
+            return Double.MAX_VALUE;
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1)
+            cost += estimateSortCost(card1);
+        if (!sorted2)
+            cost += estimateSortCost(card2);
+        if (j.p != Predicate.Op.EQUALS)
+            cost += (double) card1 * card2 / 2;
+        return cost;
+    }
+
+    /**
+     * Return true if one side of a join is already in order on its join
+     * field: a base table stored in a B+ tree keyed on it, or a subplan whose
+     * last join is a merge join that leaves its output in that order.
+     *
+     * @param alias     The alias of the table on this side
+     * @param pureField The join field on this side
+     * @param isTable   true if this side is the base table, false if it is
+     *                  the subplan
+     * @param subplan   The joins of the subplan
+     */
+    private boolean isSortedInput(String alias, String pureField, boolean isTable,
+                                  List<LogicalJoinNode> subplan) {
+        if (isTable) {
+            DbFile file = Database.getCatalog().getDatabaseFile(p.getTableId(alias));
+            return file instanceof BTreeFile && pureField.equals(
+                    file.getTupleDesc().getFieldName(((BTreeFile) file).keyField()));
+        }
+        if (subplan.isEmpty())
+            return false;
+        LogicalJoinNode last = subplan.get(subplan.size() - 1);
+        return last.mergeJoin && producesOrder(last, alias + "." + pureField);
+    }
+
+    /**
+     * @return true if a merge join for j emits its tuples in order of the
+     * given quantified field
+     * @see SortMergeJoin
+     */
+    private static boolean producesOrder(LogicalJoinNode j, String field) {
+        return switch (j.p) {
+            case EQUALS -> field.equals(j.f1QuantifiedName) || field.equals(j.f2QuantifiedName);
+            case GREATER_THAN, GREATER_THAN_OR_EQ -> field.equals(j.f1QuantifiedName);
+            default -> field.equals(j.f2QuantifiedName);
+        };
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -240,6 +498,11 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        if (joins.isEmpty()) {
+            // a single table: nothing to order, and no plan would be cached
+            return joins;
+        }
+        this.tableStats = stats;
         CostCard costCard = new CostCard();
         PlanCache cache = new PlanCache();
         for (int i = 0; i <= joins.size(); i++) {
@@ -382,22 +645,69 @@ public class JoinOptimizer {
             }
         }
 
+        // only a base table can be probed through its index
+        boolean t1IsTable = news.isEmpty() || !doesJoin(prevBest, table1Alias);
+        boolean t2IsTable = news.isEmpty() || doesJoin(prevBest, table1Alias);
+
+        // a merge join only sorts the inputs that aren't in join order, and
+        // leaves its output in join order.  Sorting both inputs is only worth
+        // it when that order also saves the sort of the ORDER BY, which the
+        // plans for the whole query otherwise pay for
+        LogicalJoinNode j1 = j;
+        boolean pkey1 = leftPkey, pkey2 = rightPkey;
+        boolean sorted1 = isSortedInput(j.t1Alias, j.f1PureName, t1IsTable, prevBest);
+        boolean sorted2 = isSortedInput(j.t2Alias, j.f2PureName, t2IsTable, prevBest);
+        String order = joinSet.size() == joins.size() ? p.getInterestingOrder() : null;
+        boolean mergeOrders = order != null && producesOrder(j, order);
+        double finalSort = order == null ? 0 : estimateSortCost(
+                estimateJoinCardinality(j, t1card, t2card, leftPkey, rightPkey, stats));
+        double mergeCost = Double.MAX_VALUE;
+        if ((sorted1 && sorted2) || mergeOrders) {
+            mergeCost = estimateMergeJoinCost(j, t1card, t2card, t1cost, t2cost, sorted1, sorted2);
+            if (!mergeOrders)
+                mergeCost += finalSort;
+        }
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t2IsTable,
+                estimateTupleSize(j.t1Alias, t1IsTable, prevBest));
+        boolean innerIsTable = t2IsTable;
+        int outerCard = t1card;
+        double outerCost = t1cost;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsTable,
+                estimateTupleSize(j.t2Alias, t2IsTable, prevBest));
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            innerIsTable = t1IsTable;
+            outerCard = t2card;
+            outerCost = t2cost;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+        cost1 += finalSort;
+        boolean merge = mergeCost < cost1;
+        if (merge) {
+            j = new LogicalJoinNode(j1.t1Alias, j1.t2Alias, j1.f1PureName, j1.f2PureName, j1.p);
+            j.mergeJoin = true;
+            cost1 = mergeCost;
+            leftPkey = pkey1;
+            rightPkey = pkey2;
+        }
         if (cost1 >= bestCostSoFar)
             return null;
 
+        if (!merge && innerIsTable && estimateIndexJoinCost(j, outerCard, outerCost) + finalSort <= cost1) {
+            LogicalJoinNode probe = new LogicalJoinNode(j.t1Alias, j.t2Alias,
+                    j.f1PureName, j.f2PureName, j.p);
+            probe.probeIndex = true;
+            j = probe;
+        }
+
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
@@ -25,6 +25,16 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the join should look up t2 through its B+ tree index on f2
+     * for each tuple of t1, rather than scan it; set by the {@link JoinOptimizer}
+     * when that is cheaper. */
+    public boolean probeIndex;
+
+    /** True if the join should merge t1 and t2 sorted on f1 and f2, sorting
+     * whichever of them isn't already; set by the {@link JoinOptimizer} when
+     * that is cheaper, or yields the order of the ORDER BY. */
+    public boolean mergeJoin;
+
     public LogicalJoinNode() {
     }
 
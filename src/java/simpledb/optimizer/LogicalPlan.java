@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -22,7 +24,9 @@ import java.io.File;
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
- * best implementations for joins.
+ * best implementations for joins.  Tables stored as B+ trees are read
+ * with an index scan when a filter on their key makes that cheaper than
+ * a sequential scan.
  */
 public class LogicalPlan {
     private List<LogicalJoinNode> joins;
@@ -32,12 +36,14 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    // the distinct aggregates of the select list
+    private final List<LogicalSelectListNode> aggregates;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private boolean hasLimit = false;
+    private int limit;
     private String query;
 //    private Query owner;
 
@@ -50,6 +56,8 @@ public class LogicalPlan {
         tableMap = new HashMap<>();
 
         selectList = new ArrayList<>();
+        groupByFields = new ArrayList<>();
+        aggregates = new ArrayList<>();
         this.query = "";
     }
 
@@ -188,24 +196,47 @@ public class LogicalPlan {
         selectList.add(new LogicalSelectListNode(aggOp, fname));
     }
     
-    /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+    /** Add an aggregate over the field to the query, and the specified
+        field to its GROUP BY list.  All the aggregates of a query are
+        computed in one pass over the same grouping; an aggregate that was
+        already added is computed once.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null to leave the GROUP BY
+               list as it is
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+        if (findAggregate(op, afield) < 0)
+            aggregates.add(new LogicalSelectListNode(op, afield));
         hasAgg = true;
     }
 
+    /** Add a field to the GROUP BY list of the query.  The result is grouped
+        by all the fields of the list, in the order they were added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** @return the position of the aggregate among the aggregates of the
+        query, or -1 if it is not one of them */
+    private int findAggregate(String op, String afield) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode agg = aggregates.get(i);
+            if (agg.aggOp.equalsIgnoreCase(op) && agg.fname.equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -219,6 +250,27 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT: only the first n tuples of the result are returned, in
+        the order of the ORDER BY if there is one.
+        @param n the number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative: " + n);
+        limit = n;
+        hasLimit = true;
+    }
+
+    /**
+     * @return the field of an ascending ORDER BY that sorts the joined
+     * tuples directly, with no aggregate in between, so that joins leaving
+     * them in that order make the sort unnecessary; null if there is none
+     */
+    String getInterestingOrder() {
+        return hasOrderBy && oByAsc && !hasAgg ? oByField : null;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +326,44 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Convert the constant of a filter into a field of the given type. */
+    private static Field filterConstant(Type type, String c) {
+        if (type == Type.INT_TYPE)
+            return new IntField(new Integer(c));
+        else
+            return new StringField(c, Type.STRING_LEN);
+    }
+
+    /** Choose the access path of a table: if it is a B+ tree, find the filter
+     *   on its key for which an index scan is cheapest, and compare that with
+     *   scanning the whole table using the selectivities in its {@link TableStats}.
+     *  @return the filter to answer with a {@link BTreeScan}, or null if a
+     *   scan of the whole table is cheaper
+     */
+    private LogicalFilterNode chooseIndexFilter(LogicalScanNode table, DbFile file, TableStats stats) {
+        if (!(file instanceof BTreeFile) || stats == null)
+            return null;
+        BTreeFile index = (BTreeFile) file;
+        int keyField = index.keyField();
+        String keyName = index.getTupleDesc().getFieldName(keyField);
+        Type keyType = index.getTupleDesc().getFieldType(keyField);
+
+        LogicalFilterNode best = null;
+        double bestCost = stats.estimateScanCost();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(keyName)
+                    || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            double sel = stats.estimateSelectivity(keyField, lf.p, filterConstant(keyType, lf.c));
+            double cost = stats.estimateIndexScanCost(sel);
+            if (cost < bestCost) {
+                best = lf;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -293,18 +383,37 @@ public class LogicalPlan {
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
 
+        // filters answered by an index scan rather than by a Filter operator
+        Set<LogicalFilterNode> indexFilters = new HashSet<>();
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbFile file;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                file = Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
-            subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats stats = baseTableStats.get(baseTableName);
+
+            OpIterator scan;
+            LogicalFilterNode indexFilter = chooseIndexFilter(table, file, stats);
+            if (indexFilter != null) {
+                BTreeFile index = (BTreeFile) file;
+                Type keyType = index.getTupleDesc().getFieldType(index.keyField());
+                scan = new BTreeScan(t, file.getId(), table.alias,
+                        new IndexPredicate(indexFilter.p, filterConstant(keyType, indexFilter.c)));
+                indexFilters.add(indexFilter);
+            } else if (file instanceof BTreeFile) {
+                // an unrestricted index scan, which a join may still probe
+                scan = new BTreeScan(t, file.getId(), table.alias, null);
+            } else {
+                scan = new SeqScan(t, file.getId(), table.alias);
+            }
+
+            subplanMap.put(table.alias,scan);
+            statsMap.put(baseTableName, stats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -324,18 +433,17 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(ftyp, lf.c);
 
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+            if (!indexFilters.contains(lf)) {
+                Predicate p = null;
+                try {
+                    p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
+                }
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -413,7 +521,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = findAggregate(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list is not computed");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -425,16 +537,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -461,18 +574,33 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                int[] afields = new int[aggregates.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggregates.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggregates.get(i).fname);
+                    ops[i] = getAggOp(aggregates.get(i).aggOp);
+                }
+                aggNode = new Aggregate(node, afields, gfields, ops, Aggregate.DEFAULT_WORKERS);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        // the joins may already have left the tuples in order; if not, a
+        // LIMIT only needs the first tuples of the order
+        if (hasOrderBy && !(oByField.equals(getInterestingOrder())
+                && JoinOptimizer.isSortedOn(node, oByField))) {
+            int field = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (hasLimit)
+                node = new TopN(field, oByAsc, limit, node);
+            else
+                node = new OrderBy(field, oByAsc, node);
+        } else if (hasLimit) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
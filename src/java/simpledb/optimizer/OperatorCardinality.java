@@ -2,6 +2,8 @@ package simpledb.optimizer;
 
 import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
 
 import java.util.Map;
 
@@ -27,10 +29,26 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof TopN || o instanceof Limit) {
+            return updateLimitCardinality(o, o instanceof TopN ? ((TopN) o).getLimit()
+                    : ((Limit) o).getLimit(), tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -43,10 +61,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -54,6 +70,52 @@ public class OperatorCardinality {
         }
     }
 
+    /**
+     * A LIMIT returns at most limit tuples of its child
+     */
+    private static boolean updateLimitCardinality(Operator o, int limit,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator child = o.getChildren()[0];
+        int childC = 1;
+        boolean hasJoinPK = false;
+        if (child instanceof Operator) {
+            hasJoinPK = updateOperatorCardinality((Operator) child,
+                    tableAliasToId, tableStats);
+            childC = ((Operator) child).getEstimatedCardinality();
+        } else if (isScan(child)) {
+            childC = scanCardinality(child, tableStats);
+        }
+        o.setEstimatedCardinality(Math.min(childC, limit));
+        return hasJoinPK;
+    }
+
+    private static boolean isScan(OpIterator o) {
+        return o instanceof SeqScan || o instanceof BTreeScan;
+    }
+
+    /**
+     * @return the estimated number of tuples returned by a scan, which for
+     *         an index scan are the tuples matching its index predicate
+     */
+    private static int scanCardinality(OpIterator scan,
+            Map<String, TableStats> tableStats) {
+        if (scan instanceof SeqScan) {
+            return tableStats.get(((SeqScan) scan).getTableName())
+                    .estimateTableCardinality(1.0);
+        }
+        BTreeScan s = (BTreeScan) scan;
+        TableStats stats = tableStats.get(s.getTableName());
+        IndexPredicate ipred = s.getIndexPredicate();
+        if (ipred == null) {
+            return stats.estimateTableCardinality(1.0);
+        }
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(s.getTableName()));
+        return stats.estimateTableCardinality(stats.estimateSelectivity(
+                f.keyField(), ipred.getOp(), ipred.getField()));
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -79,10 +141,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(child,
+                        tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -90,7 +151,8 @@ public class OperatorCardinality {
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate pred, String joinField1Name, String joinField2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -100,11 +162,11 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -122,9 +184,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -134,13 +195,12 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                pred.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -177,9 +237,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0);
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +248,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0);
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,29 +277,32 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0);
+        if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // there are at most as many groups as combinations of the group
+        // fields' distinct values
+        double groups = 1.0;
+        for (String groupFieldName : a.groupFieldNames()) {
+            String[] tmp = groupFieldName.split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
@@ -5,6 +5,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -28,6 +29,12 @@ public class TableStats {
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * The number of children assumed for an internal page of a B+ tree when
+     * estimating its height; a page of int keys holds several hundred.
+     */
+    static final int INDEX_FANOUT = 100;
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -73,7 +80,7 @@ public class TableStats {
     private int tableId;
     private int ioCostPerPage;
     private int numPages;
-    private HeapFile dbFile;
+    private DbFile dbFile;
     private Map<Integer, IntHistogram> intHistogramMap;
     private Map<Integer, StringHistogram> stringHistogramMap;
     private int numTuples;
@@ -98,8 +105,8 @@ public class TableStats {
         // some code goes here
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        this.dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.numPages = dbFile.numPages();
+        this.dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        this.numPages = dbFile instanceof BTreeFile ? ((BTreeFile) dbFile).numPages() : ((HeapFile) dbFile).numPages();
         this.intHistogramMap = new HashMap<>();
         this.stringHistogramMap = new HashMap<>();
         Map<Integer, Integer> minMap = new HashMap<>();
@@ -181,6 +188,22 @@ public class TableStats {
         return this.numPages * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate on
+     * the key of a B+ tree table through the index: one page for each level
+     * on the way down to the first leaf, then the fraction of the pages that
+     * hold matching tuples, since the leaves keep them in key order.
+     *
+     * @param selectivity the selectivity of the predicate on the key
+     * @return The estimated cost of the index scan, comparable with
+     * {@link #estimateScanCost}
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        double height = Math.ceil(Math.log(Math.max(numPages, 1)) / Math.log(INDEX_FANOUT)) + 1;
+        double leafPages = Math.max(1, Math.ceil(selectivity * numPages));
+        return (height + leafPages) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
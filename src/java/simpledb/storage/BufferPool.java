@@ -4,19 +4,25 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -26,6 +32,19 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Dirty pages may be written back before their transaction completes
+ * (STEAL); the change is logged first, so an abort or recovery can undo it.
+ * By default the pages of a committing transaction are written at commit
+ * (FORCE).  With {@link #setForceAtCommit} turned off only their log
+ * records are written, and the pages stay in the dirty page table until
+ * they are evicted, flushed or checkpointed (NO-FORCE).  A background
+ * {@link PageCleaner} writes such pages back when the pool runs short of
+ * clean frames, so that a miss rarely has to write before it can read.
+ * <p>
+ * Logging and writing a page happen under the monitor of the page, so that
+ * the dirty page table entry of a page cannot be dropped by a write that
+ * missed a change logged concurrently.
  *
  * @Threadsafe, all fields are final
  */
@@ -44,11 +63,47 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private int pagesCnt;
-    private Map<PageId, Page> pageMap;
-    private ReadWriteLock lock = new ReentrantReadWriteLock();
-    private Map<PageId, Page> dirtyPage;
+    /**
+     * Number of partitions of the page table.  Each shard has its own latch
+     * and its own eviction state, so threads working on different pages
+     * rarely contend with each other.
+     */
+    public static final int DEFAULT_SHARDS = 16;
+
+    /**
+     * One partition of the page table.  All fields are protected by the
+     * monitor of the shard.
+     */
+    private static class Shard {
+        final Map<PageId, Page> pages = new HashMap<>();
+        // pages being read from disk; concurrent misses on them wait here
+        final Map<PageId, CompletableFuture<Page>> loading = new HashMap<>();
+        final EvictionPolicy evictionPolicy;
+
+        Shard(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+        }
+    }
+
+    private final int pagesCnt;
+    private final Shard[] shards;
+    // frames in use across all shards, including pages still being read
+    private final AtomicInteger residentPages = new AtomicInteger();
+
+    private final LockManager lockManager;
+    private final PageCleaner cleaner;
 
+    // pages whose latest changes are logged but not on disk, with the LSN
+    // of the first record that changed them since they were last written
+    private final Map<PageId, Long> dirtyPageTable = new ConcurrentHashMap<>();
+    // the contents of each page as of its last UPDATE record, while they
+    // differ from its before image; the next record is diffed against them
+    // so that replaying the records in order rebuilds the page
+    private final Map<PageId, byte[]> loggedImages = new ConcurrentHashMap<>();
+    private volatile boolean forceAtCommit = true;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -56,26 +111,83 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ClockEvictionPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks the
+     * pages to evict with the given policy.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param policyFactory  creates the eviction policy of each shard, e.g.
+     *                       {@code ClockEvictionPolicy::new},
+     *                       {@code LruKEvictionPolicy::new} or
+     *                       {@code TwoQueueEvictionPolicy::new}
+     */
+    public BufferPool(int numPages, Supplier<EvictionPolicy> policyFactory) {
+        this(numPages, policyFactory, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages in the given
+     * number of page table shards.  The capacity is shared by all shards.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param policyFactory  creates the eviction policy of each shard
+     * @param numShards      number of page table partitions
+     */
+    public BufferPool(int numPages, Supplier<EvictionPolicy> policyFactory, int numShards) {
         // some code goes here
-        pagesCnt = numPages;
-        pageMap = new LinkedHashMap<>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<PageId, Page> eldest) {
-                boolean flag = size() > numPages;
-                if (flag) {
-                    Page page = eldest.getValue();
-                    if (page.isDirty() != null) {
-                        try {
-                            flushPage(page.getId());
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-                return flag;
-            }
-        };
-        this.dirtyPage = new HashMap<>();
+        this.pagesCnt = numPages;
+        this.shards = new Shard[Math.max(1, numShards)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(policyFactory.get());
+        }
+        this.lockManager = new LockManager();
+        this.cleaner = new PageCleaner(this, lockManager, numPages / 10);
+    }
+
+    private int shardIndex(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * Choose how the lock manager picks the transaction to abort when it
+     * detects a deadlock.
+     */
+    public void setDeadlockVictimPolicy(LockManager.VictimPolicy policy) {
+        lockManager.setVictimPolicy(policy);
+    }
+
+    /**
+     * Choose whether a committing transaction writes its pages to disk
+     * (FORCE, the default), or only logs them and leaves them in the pool
+     * for a later flush (NO-FORCE).
+     */
+    public void setForceAtCommit(boolean force) {
+        this.forceAtCommit = force;
+    }
+
+    /**
+     * Set how many frames the background page cleaner tries to keep free or
+     * holding clean pages, by writing back committed pages that are not on
+     * disk yet (see {@link #setForceAtCommit}), and then by stealing pages
+     * of running transactions.  Zero turns the cleaner off.
+     * The default is a tenth of the pool.
+     */
+    public void setCleanFrameTarget(int frames) {
+        cleaner.setCleanFrameTarget(frames);
+    }
+
+    /**
+     * @return a snapshot of the dirty page table: the pages whose committed
+     * changes have not been written yet, mapped to the LSN of the oldest
+     * record that recovery must redo for them
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
     }
 
     public static int getPageSize() {
@@ -110,12 +222,261 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        if (!pageMap.containsKey(pid)) {
+        lockManager.acquireLock(tid, pid, perm);
+        Shard shard = shards[shardIndex(pid)];
+        while (true) {
+            CompletableFuture<Page> load;
+            CompletableFuture<Page> pending;
+            synchronized (shard) {
+                Page page = shard.pages.get(pid);
+                if (page != null) {
+                    hits.increment();
+                    shard.evictionPolicy.pageAccessed(pid);
+                    return page;
+                }
+                pending = shard.loading.get(pid);
+                load = pending;
+                if (load == null) {
+                    load = new CompletableFuture<>();
+                    shard.loading.put(pid, load);
+                }
+            }
+            if (pending != null) {
+                // another thread is already reading this page
+                Page page = awaitLoad(pending);
+                if (page == null) {
+                    // a prefetch gave up on the page; read it ourselves
+                    continue;
+                }
+                // the page was not resident when asked for: a miss, even
+                // though another thread did the read
+                misses.increment();
+                return page;
+            }
+
+            misses.increment();
+            try {
+                reserveFrame(shard);
+                Page page = readIntoFrame(shard, pid);
+                load.complete(page);
+                wakeCleanerIfFull();
+                return page;
+            } catch (DbException | RuntimeException e) {
+                synchronized (shard) {
+                    shard.loading.remove(pid);
+                }
+                load.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Read a page from disk into a frame already reserved for it in the
+     * given shard, and make it resident.  The caller must have published a
+     * load future for the page.  The frame is given back if the read fails.
+     */
+    private Page readIntoFrame(Shard shard, PageId pid) throws DbException {
+        Page page;
+        try {
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            pageMap.put(pid, page);
+            page = dbFile.readPage(pid);
+            if (page == null) {
+                throw new DbException("failed to read page " + pid.getPageNumber()
+                        + " of table " + pid.getTableId());
+            }
+        } catch (DbException | RuntimeException e) {
+            residentPages.decrementAndGet();
+            throw e;
+        }
+        synchronized (shard) {
+            shard.loading.remove(pid);
+            shard.pages.put(pid, page);
+            shard.evictionPolicy.pageAdded(pid);
         }
-        return pageMap.get(pid);
+        return page;
+    }
+
+    /**
+     * @return the largest number of pages a single scan may read ahead, a
+     * quarter of the pool so that read-ahead cannot push out the working set
+     */
+    public int getReadAheadLimit() {
+        return pagesCnt / 4;
+    }
+
+    /**
+     * Load a page into the pool ahead of its use, without locking it.  Does
+     * nothing if the page is already resident or being read.  Under STEAL
+     * the disk version may hold another transaction's uncommitted changes,
+     * but lock-free loading is still safe: getPage locks the page before
+     * handing it out, and a rollback that rewrites the page on disk
+     * discards any cached copy (see LogFile.PageImages.install()).  Only clean
+     * frames are reused, the prefetch never writes a page.
+     *
+     * @return true if the page was read by this call
+     */
+    public boolean prefetchPage(PageId pid) {
+        Shard shard = shards[shardIndex(pid)];
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid) || shard.loading.containsKey(pid)) {
+                return false;
+            }
+        }
+        try {
+            reserveFrame(shard, false);
+        } catch (DbException e) {
+            // the pool is full of dirty pages; skip the prefetch
+            return false;
+        }
+        CompletableFuture<Page> load = new CompletableFuture<>();
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid) || shard.loading.containsKey(pid)) {
+                residentPages.decrementAndGet();
+                return false;
+            }
+            shard.loading.put(pid, load);
+        }
+        try {
+            load.complete(readIntoFrame(shard, pid));
+            return true;
+        } catch (DbException | RuntimeException e) {
+            synchronized (shard) {
+                shard.loading.remove(pid);
+            }
+            // waiters retry the read themselves
+            load.complete(null);
+            return false;
+        }
+    }
+
+    private static Page awaitLoad(CompletableFuture<Page> load) throws DbException {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof DbException dbe) {
+                throw new DbException(dbe.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the fraction of {@link #getPage} calls that found the page
+     * already resident, or 0 if no page has been requested yet.  A call that
+     * waits for another thread's read of the page counts as a miss.
+     */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Claim a free frame for a page about to be added to the given shard,
+     * evicting a page if the pool is full.
+     *
+     * @throws DbException if the pool is full and no page can be evicted
+     */
+    private void reserveFrame(Shard shard) throws DbException {
+        reserveFrame(shard, true);
+    }
+
+    /**
+     * @param steal whether a dirty page may be written back to free a frame
+     */
+    private void reserveFrame(Shard shard, boolean steal) throws DbException {
+        while (true) {
+            int resident = residentPages.get();
+            if (resident < pagesCnt) {
+                if (residentPages.compareAndSet(resident, resident + 1)) {
+                    return;
+                }
+            } else {
+                evictPage(shard, steal);
+            }
+        }
+    }
+
+    /**
+     * Make the given version of a page the cached one, evicting another page
+     * if it is not resident yet and the pool is full.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Shard shard = shards[shardIndex(pid)];
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid)) {
+                shard.pages.put(pid, page);
+                shard.evictionPolicy.pageAccessed(pid);
+                return;
+            }
+        }
+        reserveFrame(shard);
+        synchronized (shard) {
+            if (shard.pages.put(pid, page) == null) {
+                shard.evictionPolicy.pageAdded(pid);
+            } else {
+                // added concurrently; give back the frame we reserved
+                residentPages.decrementAndGet();
+            }
+        }
+        wakeCleanerIfFull();
+    }
+
+    /**
+     * Start a cleaning pass if the pool is running short of clean frames,
+     * so that the next misses find one ready.
+     */
+    private void wakeCleanerIfFull() {
+        if (pagesCnt - residentPages.get() < cleaner.getCleanFrameTarget()) {
+            cleaner.wakeUp();
+        }
+    }
+
+    /**
+     * @return the number of frames that are neither in use nor reserved
+     */
+    int freeFrames() {
+        return pagesCnt - residentPages.get();
+    }
+
+    /**
+     * @return the cached version of the page, or null if it is not resident
+     */
+    Page residentPage(PageId pid) {
+        Shard shard = shards[shardIndex(pid)];
+        synchronized (shard) {
+            return shard.pages.get(pid);
+        }
+    }
+
+    /**
+     * @return true if the page can be evicted without writing it
+     */
+    boolean isEvictable(Page page) {
+        return page.isDirty() == null && !dirtyPageTable.containsKey(page.getId());
+    }
+
+    /**
+     * @return true if the page holds committed changes that are only in the
+     * log, i.e. it is logged but has not been written since
+     */
+    boolean needsWriteBack(Page page) {
+        return page.isDirty() == null && dirtyPageTable.containsKey(page.getId());
+    }
+
+    /**
+     * @return a snapshot of the pages currently resident in the pool
+     */
+    List<Page> residentPages() {
+        List<Page> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                result.addAll(shard.pages.values());
+            }
+        }
+        return result;
     }
 
     /**
@@ -130,6 +491,7 @@ public class BufferPool {
     public void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.releaseLock(tid, pid);
     }
 
     /**
@@ -140,6 +502,21 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
+    }
+
+    /**
+     * Acquire a lock on the specified page without reading it.  A
+     * transaction whose work is split across threads takes its locks this
+     * way up front, since the lock manager tracks at most one wait per
+     * transaction and so its threads must never wait for a lock.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *                                     deadlock and this transaction was chosen as the victim
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquireLock(tid, pid, perm);
     }
 
     /**
@@ -148,12 +525,14 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  A committing transaction that has log records gets
+     * its COMMIT record before its locks are released, so that recovery
+     * does not take it for a loser.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -161,6 +540,205 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        try {
+            if (commit) {
+                if (forceAtCommit) {
+                    flushPages(tid);
+                } else {
+                    logPages(tid);
+                }
+                updateBeforeImages(tid);
+                if (Database.getLogFile().isActive(tid)) {
+                    Database.getLogFile().logCommit(tid);
+                }
+            } else {
+                if (Database.getLogFile().isActive(tid)) {
+                    // some of its changes were logged and may be on disk
+                    Database.getLogFile().logAbort(tid);
+                }
+                restorePages(tid);
+            }
+            // what is logged for the pages is now their before image
+            forgetLoggedImages(tid);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lockManager.releaseAllLocks(tid);
+        }
+    }
+
+    /**
+     * Throw away the cached versions of the pages dirtied by an aborting
+     * transaction, so that the next access rereads the on-disk version.
+     * A page whose committed contents have not been written yet is put back
+     * to its before image instead.
+     */
+    private void restorePages(TransactionId tid) throws IOException {
+        for (Page page : residentPages()) {
+            if (!tid.equals(page.isDirty())) {
+                continue;
+            }
+            if (dirtyPageTable.containsKey(page.getId())) {
+                Page before = page.getBeforeImage();
+                before.setLSN(page.getLSN());
+                Shard shard = shards[shardIndex(page.getId())];
+                synchronized (shard) {
+                    shard.pages.replace(page.getId(), page, before);
+                }
+            } else {
+                discardPage(page.getId());
+            }
+        }
+    }
+
+    /**
+     * Log the changes of a committing transaction without writing its pages
+     * (NO-FORCE).  The pages become clean, but stay in the dirty page table
+     * until they are written.
+     */
+    private void logPages(TransactionId tid) throws IOException {
+        for (Page page : residentPages()) {
+            if (tid.equals(page.isDirty())) {
+                synchronized (page) {
+                    if (!tid.equals(page.isDirty())) {
+                        // the cleaner stole it meanwhile
+                        continue;
+                    }
+                    // enter the page before its record is appended, so that
+                    // a checkpoint taken in between still sees it
+                    dirtyPageTable.putIfAbsent(page.getId(), Database.getLogFile().getCurrentLSN());
+                    logPage(page);
+                    page.markDirty(false, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make the committed contents of the pages a transaction locked the
+     * before images for later transactions.  This includes pages whose
+     * changes were already written back before the commit.
+     */
+    private void updateBeforeImages(TransactionId tid) {
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            Shard shard = shards[shardIndex(pid)];
+            Page page;
+            synchronized (shard) {
+                page = shard.pages.get(pid);
+            }
+            if (page != null) {
+                page.setBeforeImage();
+            }
+        }
+    }
+
+    private void forgetLoggedImages(TransactionId tid) {
+        for (PageId pid : lockManager.getLockedPages(tid)) {
+            loggedImages.remove(pid);
+        }
+    }
+
+    /**
+     * Append an UPDATE record for the changes of the transaction that
+     * dirtied the page since they were last logged, and stamp the page
+     * with its LSN.
+     *
+     * @return the LSN of the record
+     */
+    private long logPage(Page page) throws IOException {
+        logImage(page);
+        return page.getLSN();
+    }
+
+    /**
+     * Log a page like {@link #logPage}.
+     *
+     * @return the contents of the page the record brings it to
+     */
+    private byte[] logImage(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        byte[] after = page.getPageData();
+        byte[] before = loggedImages.get(page.getId());
+        if (before == null) {
+            before = page.getBeforeImage().getPageData();
+        }
+        long lsn = Database.getLogFile().logWrite(dirtier, page.getId(), before, after);
+        loggedImages.put(page.getId(), after);
+        page.setLSN(lsn);
+        return after;
+    }
+
+    /**
+     * Write a page whose changes are already logged, once the log is on disk
+     * up to the page's LSN.
+     */
+    private void writePage(Page page) throws IOException {
+        synchronized (page) {
+            Database.getLogFile().forceUpTo(page.getLSN());
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            dbFile.writePage(page);
+            page.markDirty(false, null);
+            dirtyPageTable.remove(page.getId());
+        }
+    }
+
+    /**
+     * Write the given pages back in the background, if they hold committed
+     * changes that are not on disk yet.  Used after a fuzzy checkpoint, so
+     * that the pages stop holding back the truncation of the log.  Pages
+     * changed by a running transaction are left alone.
+     */
+    public void writeBack(Collection<PageId> pids) {
+        cleaner.writeBack(pids);
+    }
+
+    /**
+     * Write a run of consecutive pages of one file with a single I/O.  The
+     * caller holds a lock on every page that only needs to be written back
+     * (see {@link #needsWriteBack}).  The others are changed by a running
+     * transaction that holds their locks; they are stolen WAL-style: their
+     * changes are logged first, and exactly the logged image is written,
+     * so that undo can take it back.  A stolen page becomes clean unless
+     * it changed again meanwhile.
+     *
+     * @param run the pages, in increasing page number order
+     */
+    void writeRun(List<Page> run) throws IOException {
+        writeRun(run, 0);
+    }
+
+    private void writeRun(List<Page> run, int monitorsHeld) throws IOException {
+        if (monitorsHeld < run.size()) {
+            // take the page monitors in page order, see writePage
+            synchronized (run.get(monitorsHeld)) {
+                writeRun(run, monitorsHeld + 1);
+            }
+            return;
+        }
+        long lastLSN = 0;
+        List<Page> images = new ArrayList<>(run.size());
+        List<byte[]> stolen = new ArrayList<>(run.size());
+        for (Page page : run) {
+            byte[] logged = null;
+            if (page.isDirty() != null) {
+                logged = logImage(page);
+                images.add(PageCodecs.newPage(page.getId(), logged));
+            } else {
+                images.add(page);
+            }
+            stolen.add(logged);
+            lastLSN = Math.max(lastLSN, page.getLSN());
+        }
+        Database.getLogFile().forceUpTo(lastLSN);
+        Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId()).writePages(images);
+        for (int i = 0; i < run.size(); i++) {
+            Page page = run.get(i);
+            byte[] logged = stolen.get(i);
+            if (logged != null && Arrays.equals(logged, page.getPageData())) {
+                page.markDirty(false, null);
+            }
+            dirtyPageTable.remove(page.getId());
+        }
     }
 
     /**
@@ -186,10 +764,41 @@ public class BufferPool {
         List<Page> pages = dbFile.insertTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
-            dirtyPage.put(page.getId(), page);
+            cachePage(page);
+        }
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid.  Behaves like calling {@link #insertTuple} for each tuple, but
+     * lets the file place the tuples a page at a time.
+     *
+     * @param tid     the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples  the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> pages = dbFile.insertTuples(tid, tuples);
+        for (Page page : pages) {
+            page.markDirty(true, tid);
+            cachePage(page);
         }
     }
 
+    /**
+     * Add a page that a file has just created in memory, e.g. when it was
+     * extended, on behalf of transaction tid.  The transaction is given an
+     * exclusive lock on the page, and the page replaces any version read
+     * from disk in the meantime.
+     */
+    void addNewPage(TransactionId tid, Page page)
+            throws DbException, TransactionAbortedException {
+        lockManager.acquireLock(tid, page.getId(), Permissions.READ_WRITE);
+        cachePage(page);
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -212,19 +821,23 @@ public class BufferPool {
         List<Page> pages = dbFile.deleteTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
-            dirtyPage.put(page.getId(), page);
+            cachePage(page);
         }
     }
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     * break simpledb if running in NO STEAL mode.
+     * Uncommitted changes are written too, after their UPDATE records are
+     * forced to the log (STEAL), so an abort or recovery can undo them.
+     * Callers should hold the page locks or accept that a page may be
+     * written while a transaction is changing it.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-
+        for (Page page : residentPages()) {
+            flushPage(page.getId());
+        }
     }
 
     /**
@@ -236,10 +849,18 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-
+        Shard shard = shards[shardIndex(pid)];
+        synchronized (shard) {
+            if (shard.pages.remove(pid) != null) {
+                shard.evictionPolicy.pageRemoved(pid);
+                residentPages.decrementAndGet();
+            }
+        }
+        dirtyPageTable.remove(pid);
+        loggedImages.remove(pid);
     }
 
     /**
@@ -247,33 +868,118 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pageMap.get(pid);
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        dbFile.writePage(page);
-        page.markDirty(false, null);
+        Shard shard = shards[shardIndex(pid)];
+        Page page;
+        synchronized (shard) {
+            page = shard.pages.get(pid);
+        }
+        if (page == null) {
+            return;
+        }
+        synchronized (page) {
+            if (page.isDirty() != null) {
+                // write-ahead: the uncommitted changes go to the log first
+                logPage(page);
+            } else if (!dirtyPageTable.containsKey(pid)) {
+                return;
+            }
+            // the write happens outside the shard latch; callers hold the page
+            // lock or accept the risk, see flushAllPages
+            writePage(page);
+        }
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Page page : pageMap.values()) {
-            flushPage(page.getId());
+        List<Page> dirtied = new ArrayList<>();
+        for (Page page : residentPages()) {
+            if (tid.equals(page.isDirty())) {
+                dirtied.add(page);
+            }
+        }
+        // write in file order, so pages appended by the transaction go out
+        // as one sequential run
+        dirtied.sort(Comparator.comparingInt((Page p) -> p.getId().getTableId())
+                .thenComparingInt(p -> p.getId().getPageNumber()));
+        // log every page first, so that one force covers them all
+        long lastLSN = 0;
+        for (Page page : dirtied) {
+            synchronized (page) {
+                // unless the cleaner stole it meanwhile
+                if (tid.equals(page.isDirty())) {
+                    lastLSN = Math.max(lastLSN, logPage(page));
+                }
+            }
+        }
+        Database.getLogFile().forceUpTo(lastLSN);
+        for (Page page : dirtied) {
+            writePage(page);
+            // the committed contents become the before image for later transactions
+            page.setBeforeImage();
         }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are preferred, so that the evicted page does not need to
+     * be written back.  The shard that needs the frame is tried first, then
+     * the others, so a shard full of dirty pages can borrow capacity.  If
+     * every page is dirty, one is written back (STEAL) and the caller tries
+     * again.
+     *
+     * @param preferred the shard the new page will be added to
+     * @param steal     whether a dirty page may be written back
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(Shard preferred, boolean steal) throws DbException {
         // some code goes here
         // not necessary for lab1
+        int start = 0;
+        while (shards[start] != preferred) {
+            start++;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            synchronized (shard) {
+                PageId victim = shard.evictionPolicy.chooseVictim(pid -> {
+                    Page page = shard.pages.get(pid);
+                    return page != null && isEvictable(page);
+                });
+                if (victim != null) {
+                    shard.pages.remove(victim);
+                    shard.evictionPolicy.pageRemoved(victim);
+                    residentPages.decrementAndGet();
+                    return;
+                }
+            }
+        }
+        if (!steal) {
+            throw new DbException("all pages in the buffer pool are dirty");
+        }
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) % shards.length];
+            PageId victim;
+            synchronized (shard) {
+                victim = shard.evictionPolicy.chooseVictim(pid -> shard.pages.containsKey(pid));
+            }
+            if (victim != null) {
+                // the page is clean after this, so the next attempt evicts it
+                try {
+                    flushPage(victim);
+                } catch (IOException e) {
+                    throw new DbException("could not write back page " + victim.getPageNumber()
+                            + " of table " + victim.getTableId() + ": " + e.getMessage());
+                }
+                return;
+            }
+        }
+        throw new DbException("the buffer pool has no page to evict");
     }
 
 }
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) eviction.  Resident pages sit in a ring of frames,
+ * each with a reference bit that is set on every access.  The clock hand
+ * sweeps the ring, clearing reference bits, and evicts the first page whose
+ * bit is already clear.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final List<PageId> frames;
+    private final List<Boolean> referenced;
+    private final Map<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames;
+    private int hand;
+
+    public ClockEvictionPolicy() {
+        frames = new ArrayList<>();
+        referenced = new ArrayList<>();
+        frameOf = new HashMap<>();
+        freeFrames = new ArrayDeque<>();
+        hand = 0;
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        if (frameOf.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        int frame;
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+            referenced.add(true);
+        } else {
+            frame = freeFrames.pop();
+            frames.set(frame, pid);
+            referenced.set(frame, true);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, true);
+        }
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            referenced.set(frame, false);
+            freeFrames.push(frame);
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        int n = frames.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(frame)) {
+                referenced.set(frame, false);
+            } else if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -33,6 +33,20 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages to disk.  Files that can write a run of
+     * consecutive pages with one I/O should override this; by default the
+     * pages are written one at a time.
+     *
+     * @param pages The pages to write, in increasing page number order
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            writePage(p);
+        }
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -48,6 +62,30 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples into the file on behalf of transaction.
+     * Files that can place many tuples at once, e.g. by appending whole
+     * pages, should override this; by default the tuples are inserted one
+     * at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  Each tuple should be updated to
+     *          reflect that it is now stored in this file.
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> modified = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            for (Page p : insertTuple(tid, t)) {
+                modified.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<>(modified.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -0,0 +1,197 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DbFileChannel gives a DbFile positional, page-at-a-time access to its
+ * backing file through one long-lived FileChannel, instead of opening the
+ * file for every read and write.  Reads and writes go through a per-thread
+ * direct buffer, so faulting a page in allocates nothing but the page's own
+ * byte array.
+ * <p>
+ * The channel is opened on first use and closed when the owning DbFile is
+ * garbage collected (or {@link #close} is called).
+ * <p>
+ * The file can also be read through read-only memory mappings with
+ * {@link #map}.  The file is mapped in chunks of {@link #MAP_CHUNK_SIZE}
+ * bytes; a chunk only covers the part of the file that existed when it was
+ * mapped, and is remapped when a page past its end is asked for.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** Size of the regions the file is mapped in, in bytes */
+    public static final long MAP_CHUNK_SIZE = 64L << 20;
+
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BufferPool.getPageSize()));
+
+    /**
+     * Holds the open channel.  Kept separate from DbFileChannel so that the
+     * cleaner action does not keep the DbFileChannel reachable.
+     */
+    private static class State implements Runnable {
+        volatile FileChannel channel;
+        // mapped chunks of the file, by chunk number
+        final ConcurrentHashMap<Long, MappedByteBuffer> chunks = new ConcurrentHashMap<>();
+
+        @Override
+        public void run() {
+            FileChannel c = channel;
+            channel = null;
+            chunks.clear();
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    // nothing useful to do while cleaning up
+                }
+            }
+        }
+    }
+
+    private final File file;
+    private final State state;
+
+    public DbFileChannel(File file) {
+        this.file = file;
+        this.state = new State();
+        CLEANER.register(this, state);
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = state.channel;
+        if (c == null || !c.isOpen()) {
+            synchronized (state) {
+                c = state.channel;
+                if (c == null || !c.isOpen()) {
+                    c = new RandomAccessFile(file, "rw").getChannel();
+                    state.channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    private static ByteBuffer directBuffer(int len) {
+        ByteBuffer buf = DIRECT_BUFFER.get();
+        if (buf.capacity() < len) {
+            buf = ByteBuffer.allocateDirect(len);
+            DIRECT_BUFFER.set(buf);
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Read len bytes starting at the given file offset.
+     *
+     * @return the bytes read
+     * @throws IllegalArgumentException if the file ends before len bytes were read
+     */
+    public byte[] read(long offset, int len) throws IOException {
+        FileChannel c = channel();
+        ByteBuffer buf = directBuffer(len);
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            int n = c.read(buf, pos);
+            if (n < 0) {
+                throw new IllegalArgumentException("Read past end of " + file.getName()
+                        + ": wanted " + len + " bytes at offset " + offset);
+            }
+            pos += n;
+        }
+        buf.flip();
+        byte[] data = new byte[len];
+        buf.get(data);
+        return data;
+    }
+
+    /**
+     * Write the given bytes starting at the given file offset, extending the
+     * file if needed.
+     */
+    public void write(long offset, byte[] data) throws IOException {
+        FileChannel c = channel();
+        ByteBuffer buf = directBuffer(data.length);
+        buf.put(data);
+        buf.flip();
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            pos += c.write(buf, pos);
+        }
+    }
+
+    /**
+     * Grow the file to at least the given length.  The new bytes read as
+     * zeroes; on most file systems they take no space until written.
+     */
+    public void extend(long length) throws IOException {
+        FileChannel c = channel();
+        if (c.size() < length) {
+            write(length - 1, new byte[1]);
+        }
+    }
+
+    /**
+     * Return a read-only view of len bytes starting at the given file offset,
+     * backed by a memory mapping of the file.  Later writes to that part of
+     * the file are visible through the view.
+     *
+     * @throws IllegalArgumentException if the file ends before offset + len
+     */
+    public ByteBuffer map(long offset, int len) throws IOException {
+        long chunkNo = offset / MAP_CHUNK_SIZE;
+        long chunkStart = chunkNo * MAP_CHUNK_SIZE;
+        int pos = (int) (offset - chunkStart);
+        if (pos + len > MAP_CHUNK_SIZE) {
+            // only possible for page sizes that do not divide the chunk size
+            return ByteBuffer.wrap(read(offset, len)).asReadOnlyBuffer();
+        }
+        MappedByteBuffer chunk = state.chunks.get(chunkNo);
+        if (chunk == null || chunk.capacity() < pos + len) {
+            FileChannel c = channel();
+            synchronized (state) {
+                chunk = state.chunks.get(chunkNo);
+                if (chunk == null || chunk.capacity() < pos + len) {
+                    // never map past the end of the file: mapping a channel
+                    // that is open for writing would extend the file
+                    long size = Math.min(MAP_CHUNK_SIZE, c.size() - chunkStart);
+                    if (size < pos + len) {
+                        throw new IllegalArgumentException("Read past end of " + file.getName()
+                                + ": wanted " + len + " bytes at offset " + offset);
+                    }
+                    chunk = c.map(FileChannel.MapMode.READ_ONLY, chunkStart, size);
+                    state.chunks.put(chunkNo, chunk);
+                }
+            }
+        }
+        return chunk.slice(pos, len);
+    }
+
+    /**
+     * Force any written data to the storage device.
+     */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /**
+     * Close the channel and drop any mappings.  The channel is reopened if
+     * the file is used again.
+     */
+    public void close() {
+        state.run();
+    }
+}
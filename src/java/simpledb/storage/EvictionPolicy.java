@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which page the BufferPool discards when it needs a
+ * free frame.  The BufferPool reports every page that enters the pool, every
+ * hit on a resident page and every page that leaves the pool; the policy keeps
+ * whatever bookkeeping it needs to rank the resident pages.
+ * <p>
+ * Implementations need not be thread safe: the BufferPool serializes all
+ * calls into a given policy instance.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Record that a page was read into the pool.
+     *
+     * @param pid the id of the page that is now resident
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * Record a hit on a page that is already resident.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Record that a page left the pool, either because it was evicted or
+     * because it was discarded.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict next.  The page is not removed from the
+     * policy; the BufferPool calls {@link #pageRemoved} once it has actually
+     * been evicted.
+     *
+     * @param evictable tells whether a resident page may be evicted; the
+     *                  BufferPool uses this to protect dirty pages
+     * @return the id of the page to evict, or null if no resident page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -0,0 +1,53 @@
+package simpledb.storage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many free tuple slots each page of a HeapFile
+ * has, so that an insert can go straight to a page with room instead of
+ * visiting every page of the file.
+ * <p>
+ * The counts are hints.  They are kept up to date by the inserts and
+ * deletes of the file, but an aborted transaction can leave them off by the
+ * slots it used or freed, so callers must check the page itself before
+ * relying on a count, and report what they saw with {@link #update}.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    private int[] emptySlots = new int[16];
+    // pages whose count is positive
+    private final BitSet withSpace = new BitSet();
+    private int numPages;
+
+    /**
+     * @return the number of pages the map knows about
+     */
+    synchronized int size() {
+        return numPages;
+    }
+
+    /**
+     * Record the number of free slots on a page, growing the map if the page
+     * is past its end.
+     */
+    synchronized void update(int pageNo, int free) {
+        if (pageNo >= emptySlots.length) {
+            emptySlots = Arrays.copyOf(emptySlots, Math.max(pageNo + 1, emptySlots.length * 2));
+        }
+        numPages = Math.max(numPages, pageNo + 1);
+        emptySlots[pageNo] = free;
+        withSpace.set(pageNo, free > 0);
+    }
+
+    /**
+     * @return the lowest numbered page believed to have a free slot, or -1
+     * if every known page is believed to be full
+     */
+    synchronized int findPageWithSpace() {
+        int pageNo = withSpace.nextSetBit(0);
+        return pageNo < numPages ? pageNo : -1;
+    }
+}
@@ -24,6 +24,12 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
+    private final DbFileChannel channel;
+    private volatile boolean memoryMapped;
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+    // the number of pages insertTuples has handed out, which runs ahead of
+    // the length of the file while new pages are being added
+    private volatile int allocatedPages;
 
     private Map<PageId, Page> pageMap;
     private Map<TransactionId, DbFile> dbFileMap;
@@ -38,6 +44,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.channel = new DbFileChannel(f);
         pageMap = new HashMap<>();
     }
 
@@ -75,23 +82,42 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Close the file descriptor of this file and drop its mappings, e.g.
+     * before the file is deleted.  It is reopened if the file is used again.
+     */
+    public void close() {
+        channel.close();
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Choose how pages are read.  In memory-mapped mode readPage hands the
+     * HeapPage a slice of a mapping of the file instead of a copy of the page,
+     * and the page decodes its tuples only when they are used.  This suits
+     * read-mostly tables that are scanned often; writes still go through the
+     * channel and are seen by the mapping.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        int offset = pid.getPageNumber() * BufferPool.getPageSize();
-        RandomAccessFile randomAccessFile = null;
-        byte[] data = new byte[BufferPool.getPageSize()];
+        long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
         try {
-            randomAccessFile = new RandomAccessFile(file, "r");
-            randomAccessFile.seek(offset);
-            for (int i = 0; i < BufferPool.getPageSize(); i++) {
-                data[i] = (byte) randomAccessFile.read();
+            if (memoryMapped) {
+                return new HeapPage((HeapPageId) pid, channel.map(offset, BufferPool.getPageSize()));
             }
-            HeapPage heapPage = new HeapPage((HeapPageId) pid, data);
-            randomAccessFile.close();
-            return heapPage;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            byte[] data = channel.read(offset, BufferPool.getPageSize());
+            return new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -103,14 +129,34 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         int pageNumber = page.getId().getPageNumber();
-        if (pageNumber > numPages()) {
+        if (pageNumber > Math.max(numPages(), allocatedPages)) {
             throw new IllegalArgumentException("page is exceed pageNum");
         }
+        channel.write((long) pageNumber * BufferPool.getPageSize(), page.getPageData());
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public void writePages(List<Page> pages) throws IOException {
         int pageSize = BufferPool.getPageSize();
-        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
-            f.seek(pageNumber * pageSize);
-            byte[] pageData = page.getPageData();
-            f.write(pageData);
+        int i = 0;
+        while (i < pages.size()) {
+            // one write for each run of consecutive pages
+            int j = i + 1;
+            while (j < pages.size() && pages.get(j).getId().getPageNumber()
+                    == pages.get(j - 1).getId().getPageNumber() + 1) {
+                j++;
+            }
+            int first = pages.get(i).getId().getPageNumber();
+            if (first > Math.max(numPages(), allocatedPages)) {
+                throw new IllegalArgumentException("page is exceed pageNum");
+            }
+            byte[] run = new byte[(j - i) * pageSize];
+            for (int k = i; k < j; k++) {
+                System.arraycopy(pages.get(k).getPageData(), 0, run, (k - i) * pageSize, pageSize);
+            }
+            channel.write((long) first * pageSize, run);
+            i = j;
         }
     }
 
@@ -122,30 +168,94 @@ public class HeapFile implements DbFile {
         return (int) (file.length() / BufferPool.getPageSize());
     }
 
+    /**
+     * Bring the free-space map up to date with the length of the file,
+     * reading the header of every page it does not know about yet.  This
+     * reads the header bytes straight from disk; the counts are only hints,
+     * so it does not matter if a cached version of a page differs.
+     */
+    private synchronized void syncFreeSpace() throws IOException {
+        int numPages = numPages();
+        if (freeSpace.size() >= numPages) {
+            return;
+        }
+        int numSlots = HeapPage.getNumTuples(tupleDesc);
+        int headerSize = HeapPage.getHeaderSize(tupleDesc);
+        for (int i = freeSpace.size(); i < numPages; i++) {
+            byte[] header = channel.read((long) i * BufferPool.getPageSize(), headerSize);
+            freeSpace.update(i, HeapPage.countEmptySlots(header, numSlots));
+        }
+    }
+
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        return insertTuples(tid, Collections.singletonList(t));
+    }
+
+    /**
+     * Insert a batch of tuples.  Free slots on existing pages are filled
+     * first; the remaining tuples go on new pages.  The file is extended by
+     * all the new pages at once, and the pages are built in memory and
+     * handed to the buffer pool, so they are never read back from disk and
+     * are written out together when the transaction commits.
+     * <p>
+     * The new pages are locked, cached and entered in the free-space map
+     * before the file grows, so no other transaction or read-ahead can see
+     * them as empty pages on disk and fill or cache them in the meantime.
+     */
+    @Override
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
         List<Page> affectPage = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
+        BufferPool bufferPool = Database.getBufferPool();
+        int next = 0;
+        syncFreeSpace();
+        // every probe either inserts or marks a page full, so this terminates
+        for (int i = freeSpace.findPageWithSpace(); i >= 0 && next < tuples.size();
+             i = freeSpace.findPageWithSpace()) {
             HeapPageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+            boolean alreadyLocked = bufferPool.holdsLock(tid, pageId);
+            // 先用共享锁检查是否有空槽, 满页不需要持有排他锁
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
             if (page.getNumEmptySlots() > 0) {
-                page.insertTuple(t);
+                page = (HeapPage) bufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
+                while (next < tuples.size() && page.getNumEmptySlots() > 0) {
+                    page.insertTuple(tuples.get(next++));
+                }
                 page.markDirty(true, tid);
+                freeSpace.update(i, page.getNumEmptySlots());
                 affectPage.add(page);
-                break;
+                continue;
+            }
+            freeSpace.update(i, 0);
+            if (!alreadyLocked) {
+                bufferPool.unsafeReleasePage(tid, pageId);
             }
         }
-        if (affectPage.size() == 0) {
-//            新建个page插入
-            HeapPageId pageId = new HeapPageId(getId(), numPages());
-            HeapPage blankPage = new HeapPage(pageId, HeapPage.createEmptyPageData());
-            writePage(blankPage);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            page.insertTuple(t);
-            page.markDirty(true, tid);
-            affectPage.add(page);
+        if (next == tuples.size()) {
+            return affectPage;
+        }
+
+//        新建page插入剩下的tuple
+        int perPage = HeapPage.getNumTuples(tupleDesc);
+        int newPages = (tuples.size() - next + perPage - 1) / perPage;
+        synchronized (this) {
+            syncFreeSpace();
+            int firstPage = numPages();
+            allocatedPages = firstPage + newPages;
+            for (int i = firstPage; i < firstPage + newPages; i++) {
+                HeapPage page = new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData());
+                while (next < tuples.size() && page.getNumEmptySlots() > 0) {
+                    page.insertTuple(tuples.get(next++));
+                }
+                page.markDirty(true, tid);
+                bufferPool.addNewPage(tid, page);
+                freeSpace.update(i, page.getNumEmptySlots());
+                affectPage.add(page);
+            }
+            channel.extend((long) (firstPage + newPages) * BufferPool.getPageSize());
         }
         return affectPage;
     }
@@ -156,43 +266,82 @@ public class HeapFile implements DbFile {
         // some code goes here
         List<Page> affectPage = new ArrayList<>();
         PageId pageId = t.getRecordId().getPageId();
-        for (int i = 0; i < numPages(); i++) {
-            if (i == pageId.getPageNumber()) {
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                page.deleteTuple(t);
-                page.markDirty(true, tid);
-                affectPage.add(page);
-            }
+        if (pageId.getTableId() != getId() || pageId.getPageNumber() >= numPages()) {
+            throw new DbException("tuple is not a member of this file");
         }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        page.markDirty(true, tid);
+        freeSpace.update(pageId.getPageNumber(), page.getNumEmptySlots());
+        affectPage.add(page);
         return affectPage;
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, 0, -1);
+    }
+
+    /**
+     * Returns an iterator over the tuples on pages firstPage (inclusive) to
+     * endPage (exclusive) of this file, so that several threads can scan
+     * disjoint parts of the file.  Like {@link #iterator(TransactionId)}, it
+     * reads the pages through the BufferPool.
+     *
+     * @param tid       the transaction the scan runs in
+     * @param firstPage the first page to scan
+     * @param endPage   the page after the last page to scan
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        if (firstPage < 0 || endPage < firstPage)
+            throw new IllegalArgumentException("bad page range " + firstPage + " to " + endPage);
+        return new HeapFileIterator(this, tid, firstPage, endPage);
     }
 
     private static class HeapFileIterator implements DbFileIterator {
         private final HeapFile heapFile;
         private final TransactionId tid;
+        private final ReadAhead readAhead;
+        private final int firstPage;
+        // the page after the last page to scan, or -1 to scan to the end
+        private final int endPage;
         private Iterator<Tuple> iterator;
         private int page;
 
-        public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, int firstPage, int endPage) {
             this.heapFile = heapFile;
             this.tid = tid;
+            this.readAhead = new ReadAhead(heapFile.getId());
+            this.firstPage = firstPage;
+            this.endPage = endPage;
+        }
+
+        /**
+         * @return the page after the last page to scan
+         */
+        private int endPage() {
+            int numPages = heapFile.numPages();
+            return endPage < 0 ? numPages : Math.min(endPage, numPages);
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            page = 0;
-            iterator = getPageTuples(page);
+            page = firstPage;
+            readAhead.reset();
+            if (endPage >= 0 && page >= endPage()) {
+                // an empty range
+                iterator = Collections.emptyIterator();
+            } else {
+                iterator = getPageTuples(page);
+            }
         }
 
         private Iterator<Tuple> getPageTuples(int pageNo) throws DbException, TransactionAbortedException {
 
-            if (pageNo >= 0 && pageNo < heapFile.numPages()) {
+            int numPages = endPage();
+            if (pageNo >= 0 && pageNo < numPages) {
+                readAhead.pageRequested(pageNo, numPages);
                 HeapPageId pid = new HeapPageId(heapFile.getId(), pageNo);
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
                 return page.iterator();
@@ -206,17 +355,15 @@ public class HeapFile implements DbFile {
             if (iterator == null) {
                 return false;
             }
-            if (iterator.hasNext()) {
-                return true;
-            } else {
-                if (page < (heapFile.numPages() - 1)) {
-                    page++;
-                    iterator = getPageTuples(page);
-                    return iterator.hasNext();
-                } else {
+            // skip over empty pages
+            while (!iterator.hasNext()) {
+                if (page >= endPage() - 1) {
                     return false;
                 }
+                page++;
+                iterator = getPageTuples(page);
             }
+            return true;
         }
 
         @Override
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -24,10 +25,15 @@ public class HeapPage implements Page {
     final Tuple[] tuples;
     final int numSlots;
 
+    // the page's bytes in the file, for pages whose tuples are decoded
+    // lazily; null once every tuple is decoded or the page is modified
+    private ByteBuffer source;
+
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
     private TransactionId dirtytid;
     private boolean dirty;
+    private volatile long lsn;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -69,6 +75,28 @@ public class HeapPage implements Page {
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage that decodes its tuples lazily from the given bytes,
+     * typically a slice of a memory-mapped HeapFile.  Only the header is read
+     * up front; a tuple is decoded the first time it is used, and everything
+     * is decoded (and the buffer let go of) before the page is first modified.
+     * The buffer must keep holding the page's on-disk contents until then,
+     * which holds for a mapping because a page is only written back after it
+     * has been modified.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.header = new byte[getHeaderSize()];
+        data.get(0, header);
+        this.tuples = new Tuple[numSlots];
+        this.source = data;
+        // the before image is copied from source when it is first needed
+    }
+
     /**
      * Retrieve the number of tuples on this page.
      *
@@ -76,6 +104,13 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {
         // some code goes here
+        return getNumTuples(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with the given schema
+     */
+    static int getNumTuples(TupleDesc td) {
         return Math.floorDiv(BufferPool.getPageSize() * 8, (td.getSize() * 8 + 1));
     }
 
@@ -87,7 +122,30 @@ public class HeapPage implements Page {
     private int getHeaderSize() {
 
         // some code goes here
-        return getNumTuples() % 8 == 0 ? getNumTuples() / 8 : getNumTuples() / 8 + 1;
+        return getHeaderSize(td);
+    }
+
+    /**
+     * @return the number of header bytes on a page of a table with the given schema
+     */
+    static int getHeaderSize(TupleDesc td) {
+        int numTuples = getNumTuples(td);
+        return numTuples % 8 == 0 ? numTuples / 8 : numTuples / 8 + 1;
+    }
+
+    /**
+     * @return the number of clear bits among the first numSlots bits of a
+     * page header
+     */
+    static int countEmptySlots(byte[] header, int numSlots) {
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; i++) {
+            used += Integer.bitCount(header[i] & 0xff);
+        }
+        if (numSlots % 8 != 0) {
+            used += Integer.bitCount(header[numSlots / 8] & ((1 << (numSlots % 8)) - 1));
+        }
+        return numSlots - used;
     }
 
     /**
@@ -100,6 +158,15 @@ public class HeapPage implements Page {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                byte[] data = sourceData();
+                synchronized (oldDataLock) {
+                    if (oldData == null) {
+                        oldData = data;
+                    }
+                    oldDataRef = oldData;
+                }
+            }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -110,9 +177,55 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
+        byte[] data = getPageData().clone();
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    /**
+     * @return a copy of the bytes this page was decoded from, if its tuples
+     * are decoded lazily, otherwise null
+     */
+    private synchronized byte[] sourceData() {
+        if (source == null) {
+            return null;
+        }
+        byte[] data = new byte[source.capacity()];
+        source.get(0, data);
+        return data;
+    }
+
+    /**
+     * @return the tuple in slot i, decoding it first if necessary
+     */
+    private synchronized Tuple tupleAt(int i) {
+        if (tuples[i] == null && source != null && isSlotUsed(i)) {
+            byte[] data = new byte[td.getSize()];
+            source.get(header.length + i * td.getSize(), data);
+            tuples[i] = readNextTuple(new DataInputStream(new ByteArrayInputStream(data)), i);
+        }
+        return tuples[i];
+    }
+
+    /**
+     * Decode every tuple still on disk and stop reading from the source
+     * buffer.  Called before the page is modified, since after that the
+     * file no longer holds this page's contents once it has been flushed.
+     */
+    private synchronized void materialize() {
+        if (source == null) {
+            return;
+        }
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            if (oldData == null) {
+                oldData = sourceData();
+            }
+        }
+        for (int i = 0; i < numSlots; i++) {
+            tupleAt(i);
         }
+        source = null;
     }
 
     /**
@@ -169,6 +282,10 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
+        byte[] unmodified = sourceData();
+        if (unmodified != null) {
+            return unmodified;
+        }
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -262,6 +379,7 @@ public class HeapPage implements Page {
         if (!this.pid.equals(pageId) || !isSlotUsed(tupleNumber)) {
             throw new DbException("this tuple is not on this page, or tuple slot is already empty");
         }
+        materialize();
         tuples[tupleNumber] = null;
         markSlotUsed(tupleNumber, false);
     }
@@ -283,6 +401,7 @@ public class HeapPage implements Page {
         if (!t.getTupleDesc().equals(td)) {
             return;
         }
+        materialize();
         for (int i = 0; i < getNumTuples(); i++) {
             if (!isSlotUsed(i)) {
                 RecordId recordId = new RecordId(pid, i);
@@ -315,20 +434,21 @@ public class HeapPage implements Page {
         return dirty ? dirtytid : null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int ans = 0;
-        for (byte b : header) {
-            for (int j = 0; j < 8; j++) {
-                if ((b & (1 << j)) == 0) {
-                    ans++;
-                }
-            }
-        }
-        return ans;
+        // padding bits at the end of the header are not slots
+        return countEmptySlots(header, numSlots);
     }
 
     /**
@@ -363,6 +483,9 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        if (source != null) {
+            return lazyIterator();
+        }
         List<Tuple> list = new ArrayList<>();
         for (int i = 0; i < tuples.length; i++) {
             if (isSlotUsed(i)) {
@@ -371,5 +494,39 @@ public class HeapPage implements Page {
         }
         return list.iterator();
     }
-}
 
+    /**
+     * Iterator over the tuples in the slots in use when it was created,
+     * decoding each tuple only when it is returned.
+     */
+    private Iterator<Tuple> lazyIterator() {
+        byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int slot = nextSlot(0);
+
+            private int nextSlot(int from) {
+                for (int i = from; i < numSlots; i++) {
+                    if (((used[i / 8] >> (i % 8)) & 1) == 1 && tupleAt(i) != null) {
+                        return i;
+                    }
+                }
+                return numSlots;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tupleAt(slot);
+                slot = nextSlot(slot + 1);
+                return t;
+            }
+        };
+    }
+}
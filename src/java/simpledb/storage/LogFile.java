@@ -7,7 +7,9 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -55,23 +57,49 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of the page id (see
+PageCodecs.writePageId()) and the difference between the before
+image and the after image of the page, as the byte ranges in which they
+differ with their old and new contents (see PageDelta.writeTo()).  The
+before image is the page as of the transaction's previous UPDATE record
+for it, or its committed contents for the first one, so replaying the
+records of a page in order rebuilds it.  See LogFile.print() for an
+example.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  This transaction table is followed by the
+dirty page table: an integer count of pages, and for each page its
+page id and the long integer
+offset of the first log record whose changes to it may not be on disk.
+
+<li> CLR (compensation) records are written when an UPDATE is undone.
+They consist of the long integer offset of the UPDATE record they
+compensate, followed by the page id and the byte ranges that were restored, with their restored contents only.  CLRs are
+redone but never undone.
 
 </ul>
+
+<p> Recovery follows ARIES, at page granularity: an analysis pass
+rebuilds the transaction table and dirty page table from the last
+checkpoint and the records after it, a redo pass repeats history by
+writing the new contents of the byte ranges of UPDATE and CLR records
+from the oldest recLSN in the dirty page table, and an undo pass rolls
+back the transactions that never completed, writing a CLR for every
+UPDATE it undoes and finally an ABORT record.  A range is overwritten
+rather than patched relative to its old contents, so redo is idempotent
+and pages do not need to carry their LSN on disk.
+
+<p> Record offsets change when the log is truncated, so the LSNs handed
+out to the rest of the system are logical: the offset of a record plus
+the number of bytes truncated from the front of the log so far.
 */
 public class LogFile {
 
@@ -84,6 +112,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -92,9 +121,30 @@ public class LogFile {
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    // bytes removed from the front of the log by truncation; the logical
+    // LSN of the record at offset o is o + truncatedBytes //protected by this
+    long truncatedBytes = 0;
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    // bytes of UPDATE records written by each live transaction; read without
+    // the LogFile lock by the lock manager when it picks a deadlock victim
+    final Map<Long,Long> tidToLogBytes = new ConcurrentHashMap<>();
+
+    // group commit: commit records appended so far (protected by this),
+    // and how many of them are known to be on disk, whether a force is in
+    // progress and how long a leader waits for followers (protected by
+    // groupCommitLock)
+    long appendedCommits = 0;
+    private final Object groupCommitLock = new Object();
+    private long durableCommits = 0;
+    private boolean forcing = false;
+    private volatile long groupCommitDelay = 0;
+    // forces done by group commit leaders, for LogTest
+    private long groupForces = 0;
+    // every record with a smaller LSN is on disk (written under groupCommitLock)
+    private volatile long flushedLSN = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -166,6 +216,7 @@ public class LogFile {
                 currentOffset = raf.getFilePointer();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
@@ -173,19 +224,119 @@ public class LogFile {
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
+        Commits are forced as a group: the record is appended under the
+        log lock, but the force happens outside it, so transactions that
+        commit while a force is in progress append their records and are
+        all made durable by the next single force.
+
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            // one write for the whole record
+            ByteArrayOutputStream record = new ByteArrayOutputStream(INT_SIZE + 2 * LONG_SIZE);
+            DataOutputStream dos = new DataOutputStream(record);
+            dos.writeInt(COMMIT_RECORD);
+            dos.writeLong(tid.getId());
+            dos.writeLong(currentOffset);
+            raf.write(record.toByteArray());
+            currentOffset = raf.getFilePointer();
+            seq = ++appendedCommits;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLogBytes.remove(tid.getId());
+        }
+        awaitDurable(seq);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Set how long the transaction that forces the log for a group of
+        commits waits for more commits to join the group before forcing.
+        Zero (the default) forces at once; commits still form groups
+        while a force is in progress.
+        @param millis The longest time to delay a commit, in ms
+    */
+    public void setGroupCommitDelay(long millis) {
+        groupCommitDelay = millis;
+    }
+
+    /** @return how many forces group commit has done */
+    public long getGroupForces() {
+        synchronized (groupCommitLock) {
+            return groupForces;
+        }
+    }
+
+    /** Wait until the commit record with the given sequence number is on
+        disk.  The first waiter that finds no force in progress becomes
+        the leader: it forces everything appended so far, then wakes all
+        the commits that force covered.
+        @param seq The sequence number of the commit record
+    */
+    private void awaitDurable(long seq) throws IOException {
+        while (true) {
+            synchronized (groupCommitLock) {
+                while (durableCommits < seq && forcing) {
+                    waitForGroup(0);
+                }
+                if (durableCommits >= seq) {
+                    return;
+                }
+                forcing = true;
+                if (groupCommitDelay > 0) {
+                    // let more committers join; they see forcing and wait
+                    waitForGroup(groupCommitDelay);
+                }
+            }
+            long covered = 0;
+            try {
+                covered = forceAppended();
+            } finally {
+                synchronized (groupCommitLock) {
+                    forcing = false;
+                    groupForces++;
+                    durableCommits = Math.max(durableCommits, covered);
+                    groupCommitLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitForGroup(long millis) throws InterruptedIOException {
+        try {
+            groupCommitLock.wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for group commit");
+        }
+    }
+
+    /** Force the log without holding the log lock.
+        @return the number of commit records known to be on disk
+    */
+    private long forceAppended() throws IOException {
+        while (true) {
+            long seq;
+            long lsn;
+            FileChannel channel;
+            synchronized (this) {
+                seq = appendedCommits;
+                lsn = lsnOf(currentOffset);
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+                synchronized (groupCommitLock) {
+                    flushedLSN = Math.max(flushedLSN, lsn);
+                }
+                return seq;
+            } catch (ClosedChannelException e) {
+                // the log was truncated into a new file; force that one
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -193,11 +344,21 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
+        throws IOException  {
+        return logWrite(tid, after.getId(), before.getPageData(), after.getPageData());
+    }
+
+    /** Write an UPDATE record for the change of a page from one image
+        to another.
+        @return the LSN of the record
+    */
+    synchronized long logWrite(TransactionId tid, PageId pid, byte[] before,
+                               byte[] after)
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
@@ -205,87 +366,79 @@ public class LogFile {
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page id (see PageCodecs.writePageId)
+           changed byte ranges (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
+        long startOffset = currentOffset;
+        // transactions that bypass Transaction have no BEGIN record
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), startOffset);
+        PageDelta delta = PageDelta.between(before, after);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.writeInt(UPDATE_RECORD);
+        dos.writeLong(tid.getId());
+        PageCodecs.writePageId(dos, pid);
+        delta.writeTo(dos);
+        dos.writeLong(currentOffset);
+        raf.write(record.toByteArray());
         currentOffset = raf.getFilePointer();
+        tidToLogBytes.merge(tid.getId(), currentOffset - startOffset, Long::sum);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsnOf(startOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    /** Write a CLR record for the given UPDATE record, which is being
+        undone.
+    */
+    private void logCompensation(LogRecord undone) throws IOException {
+        preAppend();
+        long startOffset = currentOffset;
+        raf.writeInt(CLR_RECORD);
+        raf.writeLong(undone.tid);
+        raf.writeLong(undone.offset);
+        PageCodecs.writePageId(raf, undone.pid);
+        undone.delta.compensation().writeTo(raf);
+        raf.writeLong(startOffset);
+        currentOffset = raf.getFilePointer();
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** @return the logical LSN of the record at the given offset */
+    private long lsnOf(long offset) {
+        return offset + truncatedBytes;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** @return the offset of the record with the given logical LSN */
+    private long offsetOf(long lsn) {
+        return lsn - truncatedBytes;
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** @return the LSN the next record appended to the log will get, a
+        lower bound for the LSN of any record not yet written
+    */
+    public synchronized long getCurrentLSN() {
+        return lsnOf(Math.max(currentOffset, LONG_SIZE));
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Make sure every record up to and including the one with the given
+        LSN is on disk.  Called before a page is written (write-ahead
+        logging), with the LSN of the page.
+        @param lsn The LSN, or 0 for none
+    */
+    public void forceUpTo(long lsn) throws IOException {
+        if (lsn > 0 && lsn >= flushedLSN) {
+            force();
         }
-        return newPage;
+    }
 
+    /** Return the number of bytes of update records the specified live
+        transaction has written to the log so far.
+        @param tid The transaction
+    */
+    public long getLogBytesWritten(TransactionId tid) {
+        return tidToLogBytes.getOrDefault(tid.getId(), 0L);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -309,44 +462,60 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        The checkpoint is fuzzy: it records the transaction table and the
+        dirty page table as they are, without flushing any page, so
+        transactions keep running while it is taken.  The pages in the
+        dirty page table are then written back in the background, and
+        until they are, recovery redoes them from their recLSN, which also
+        keeps logTruncate from dropping the records they need.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        Map<PageId, Long> dirtyPages;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // a page whose record is appended after this snapshot is
+            // found by the analysis pass, which starts at the checkpoint
+            dirtyPages = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                raf.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                raf.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            raf.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                PageCodecs.writePageId(raf, e.getKey());
+                raf.writeLong(offsetOf(e.getValue()));
             }
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            endCpOffset = raf.getFilePointer();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        Database.getBufferPool().writeBack(dirtyPages.keySet());
         logTruncate();
     }
 
@@ -379,6 +548,16 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
+
+            // redo starts at the oldest change not yet on disk
+            int numDirty = raf.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                PageCodecs.readPageId(raf);
+                long recOffset = raf.readLong();
+                if (recOffset < minLogRecord) {
+                    minLogRecord = recOffset;
+                }
+            }
         }
 
         // we can truncate everything before minLogRecord
@@ -403,11 +582,8 @@ public class LogFile {
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    PageCodecs.writePageId(logNew, PageCodecs.readPageId(raf));
+                    PageDelta.readFrom(raf, true).writeTo(logNew);
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -418,9 +594,17 @@ public class LogFile {
                         logNew.writeLong(xid);
                         logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
+                    int numDirty = raf.readInt();
+                    logNew.writeInt(numDirty);
+                    while (numDirty-- > 0) {
+                        PageCodecs.writePageId(logNew, PageCodecs.readPageId(raf));
+                        logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    }
                     break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
+                case CLR_RECORD:
+                    logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    PageCodecs.writePageId(logNew, PageCodecs.readPageId(raf));
+                    PageDelta.readFrom(raf, false).writeTo(logNew);
                     break;
                 }
 
@@ -435,6 +619,9 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        // the new log replaces the old one, so it must be on disk first
+        logNew.getChannel().force(true);
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -443,6 +630,11 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        // the live transactions' first records moved with the rest of the log
+        for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+            e.setValue((e.getValue() - minLogRecord) + LONG_SIZE);
+        }
+        truncatedBytes += minLogRecord - LONG_SIZE;
         //print();
     }
 
@@ -460,18 +652,184 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord != null) {
+                    undo(Collections.singleton(tid.getId()), firstRecord);
+                }
+            }
+        }
+    }
+
+    /** @return true if the transaction has log records and has not yet
+        committed or aborted
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** A log record as read back by recovery and rollback.  Page deltas
+        are only present if they were asked for.
+    */
+    private static class LogRecord {
+        int type;
+        long tid;
+        long offset;
+        PageId pid;           // UPDATE and CLR
+        PageDelta delta;      // UPDATE and CLR
+        long undoneOffset;    // CLR
+        Map<Long, Long> activeTransactions;   // CHECKPOINT
+        Map<PageId, Long> dirtyPages;         // CHECKPOINT
+    }
+
+    /** Read the record starting at the current position of the log.
+        @param withDeltas whether to read page deltas or skip over them
+    */
+    private LogRecord readRecord(boolean withDeltas) throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = raf.getFilePointer();
+        r.type = raf.readInt();
+        r.tid = raf.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+        case CLR_RECORD:
+            if (r.type == CLR_RECORD) {
+                r.undoneOffset = raf.readLong();
+            }
+            r.pid = PageCodecs.readPageId(raf);
+            if (withDeltas) {
+                r.delta = PageDelta.readFrom(raf, r.type == UPDATE_RECORD);
+            } else {
+                PageDelta.skip(raf, r.type == UPDATE_RECORD);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            r.activeTransactions = new HashMap<>();
+            int numXactions = raf.readInt();
+            while (numXactions-- > 0) {
+                long xid = raf.readLong();
+                r.activeTransactions.put(xid, raf.readLong());
+            }
+            r.dirtyPages = new HashMap<>();
+            int numDirty = raf.readInt();
+            while (numDirty-- > 0) {
+                PageId pid = PageCodecs.readPageId(raf);
+                r.dirtyPages.put(pid, raf.readLong());
+            }
+            break;
+        case BEGIN_RECORD:
+        case COMMIT_RECORD:
+        case ABORT_RECORD:
+            break;
+        default:
+            throw new IOException("bad log record type " + r.type + " at offset " + r.offset);
+        }
+        raf.readLong(); // start offset
+        return r;
+    }
+
+    /** The on-disk images of the pages that redo or undo is changing.
+        A page is read on first use, and all of them are written back,
+        and any cached versions dropped, by install().  Pages of tables
+        that are no longer in the catalog are ignored.
+    */
+    private class PageImages {
+        private final Map<PageId, byte[]> images = new HashMap<>();
+
+        /** @return the image of the page the record changes, or null if
+            its table is gone
+        */
+        byte[] get(LogRecord r) {
+            byte[] image = images.get(r.pid);
+            if (image != null) {
+                return image;
+            }
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(r.pid.getTableId());
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+            Page onDisk = null;
+            try {
+                onDisk = file.readPage(r.pid);
+            } catch (IllegalArgumentException e) {
+                // the page was never written; the log has all of it
+            }
+            image = onDisk != null ? onDisk.getPageData().clone() : new byte[r.delta.pageLength()];
+            images.put(r.pid, image);
+            return image;
+        }
+
+        void install() throws IOException {
+            List<PageId> pids = new ArrayList<>(images.keySet());
+            // in file order, so a page past the end of a file follows the
+            // ones before it
+            pids.sort(Comparator.comparingInt(PageId::getTableId)
+                      .thenComparingInt(PageId::getPageNumber));
+            for (PageId pid : pids) {
+                Page page = PageCodecs.newPage(pid, images.get(pid));
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                Database.getBufferPool().discardPage(pid);
+            }
+            images.clear();
+        }
+    }
+
+    /** Undo the UPDATE records of the given transactions that have not
+        been compensated yet, newest first, writing a CLR for each.  The
+        caller must hold the log lock.
+        @param tids The transactions to roll back
+        @param fromOffset The offset of their first log record
+    */
+    private void undo(Set<Long> tids, long fromOffset) throws IOException {
+        List<LogRecord> updates = new ArrayList<>();
+        Set<Long> compensated = new HashSet<>();
+        raf.seek(fromOffset);
+        while (raf.getFilePointer() < currentOffset) {
+            long start = raf.getFilePointer();
+            int type = raf.readInt();
+            long tid = raf.readLong();
+            raf.seek(start);
+            LogRecord r = readRecord(tids.contains(tid) && type == UPDATE_RECORD);
+            if (!tids.contains(tid)) {
+                continue;
+            }
+            if (r.type == UPDATE_RECORD) {
+                updates.add(r);
+            } else if (r.type == CLR_RECORD) {
+                compensated.add(r.undoneOffset);
+            }
+        }
+        raf.seek(currentOffset);
+
+        PageImages images = new PageImages();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord r = updates.get(i);
+            if (compensated.contains(r.offset)) {
+                continue;
+            }
+            logCompensation(r);
+            byte[] image = images.get(r);
+            if (image != null) {
+                r.delta.undo(image);
             }
         }
+        images.install();
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write everything back first, so that the checkpoint leaves
+            // nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -487,6 +845,87 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    return;
+                }
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+
+                // analysis: rebuild the transaction table and the dirty
+                // page table as of the end of the log
+                Map<Long, Long> active = new HashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                long end = LONG_SIZE;
+                raf.seek(cpLoc == NO_CHECKPOINT_ID ? LONG_SIZE : cpLoc);
+                try {
+                    while (raf.getFilePointer() < raf.length()) {
+                        LogRecord r = readRecord(false);
+                        switch (r.type) {
+                        case CHECKPOINT_RECORD:
+                            active.putAll(r.activeTransactions);
+                            dirtyPages.putAll(r.dirtyPages);
+                            break;
+                        case BEGIN_RECORD:
+                            active.put(r.tid, r.offset);
+                            break;
+                        case UPDATE_RECORD:
+                        case CLR_RECORD:
+                            active.putIfAbsent(r.tid, r.offset);
+                            dirtyPages.putIfAbsent(r.pid, r.offset);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            active.remove(r.tid);
+                            break;
+                        }
+                        end = raf.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    // a record torn by the crash; the log ends before it
+                }
+                raf.setLength(end);
+                currentOffset = raf.length();
+
+                // redo: repeat history from the oldest change that may not
+                // have reached the disk
+                long redoFrom = currentOffset;
+                for (long recOffset : dirtyPages.values()) {
+                    redoFrom = Math.min(redoFrom, recOffset);
+                }
+                raf.seek(redoFrom);
+                PageImages images = new PageImages();
+                while (raf.getFilePointer() < currentOffset) {
+                    LogRecord r = readRecord(true);
+                    if (r.type == UPDATE_RECORD || r.type == CLR_RECORD) {
+                        Long recOffset = dirtyPages.get(r.pid);
+                        if (recOffset != null && r.offset >= recOffset) {
+                            byte[] image = images.get(r);
+                            if (image != null) {
+                                r.delta.redo(image);
+                            }
+                        }
+                    }
+                }
+                images.install();
+
+                // undo: roll back the losers and record that they aborted
+                if (!active.isEmpty()) {
+                    undo(active.keySet(), Collections.min(active.values()));
+                    for (long tid : active.keySet()) {
+                        preAppend();
+                        raf.writeInt(ABORT_RECORD);
+                        raf.writeLong(tid);
+                        raf.writeLong(currentOffset);
+                        currentOffset = raf.getFilePointer();
+                    }
+                }
+                raf.seek(currentOffset);
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
@@ -521,6 +960,18 @@ public class LogFile {
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                     break;
 
+                case CLR_RECORD:
+                    System.out.println(" (CLR)");
+                    System.out.println(raf.getFilePointer() + ": UNDONE RECORD: " + raf.readLong());
+                    long clrStart = raf.getFilePointer();
+                    PageId restoredPid = PageCodecs.readPageId(raf);
+                    PageDelta restored = PageDelta.readFrom(raf, false);
+                    System.out.println(clrStart + ": restored page table id " + restoredPid.getTableId());
+                    System.out.println(clrStart + ": restored page number " + restoredPid.getPageNumber());
+                    System.out.println(clrStart + " TO " + raf.getFilePointer() + ": " + restored.changedBytes() + " restored bytes");
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    break;
+
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
                     int numTransactions = raf.readInt();
@@ -532,6 +983,13 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    int numDirty = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                    while (numDirty-- > 0) {
+                        PageId dirtyPid = PageCodecs.readPageId(raf);
+                        long recOffset = raf.readLong();
+                        System.out.println(": DIRTY PAGE " + dirtyPid.getPageNumber() + " OF TABLE " + dirtyPid.getTableId() + ", REC OFFSET " + recOffset);
+                    }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
@@ -539,18 +997,14 @@ public class LogFile {
                     System.out.println(" (UPDATE)");
 
                     long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    PageId pid = PageCodecs.readPageId(raf);
 
                     long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    PageDelta delta = PageDelta.readFrom(raf, true);
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println(start + ": page table id " + pid.getTableId());
+                    System.out.println(start + ": page number " + pid.getPageNumber());
+                    System.out.println(middle + " TO " + (raf.getFilePointer()) + ": " + delta.changedBytes() + " changed bytes");
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
@@ -568,7 +1022,13 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
+        long seq = appendedCommits;
+        long lsn = lsnOf(currentOffset);
         raf.getChannel().force(true);
+        synchronized (groupCommitLock) {
+            durableCommits = Math.max(durableCommits, seq);
+            flushedLSN = Math.max(flushedLSN, lsn);
+        }
     }
 
 }
@@ -0,0 +1,86 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K eviction (O'Neil, O'Neil and Weikum).  The policy remembers the times
+ * of the last K references to every resident page and evicts the page whose
+ * K-th most recent reference is the oldest.  Pages referenced fewer than K
+ * times are evicted first, least recently used first, so pages touched once
+ * by a sequential scan never push out pages that are used repeatedly.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final Map<PageId, long[]> history;
+    private long clock;
+
+    public LruKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of references remembered per page
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.history = new HashMap<>();
+        this.clock = 0;
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        if (!history.containsKey(pid)) {
+            long[] times = new long[k];
+            times[0] = ++clock;
+            history.put(pid, times);
+        } else {
+            pageAccessed(pid);
+        }
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        long[] times = history.get(pid);
+        if (times == null) {
+            return;
+        }
+        // times[0] is the most recent reference, times[k - 1] the oldest
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = ++clock;
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        history.remove(pid);
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        boolean victimHasFullHistory = true;
+        long victimTime = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> entry : history.entrySet()) {
+            long[] times = entry.getValue();
+            boolean fullHistory = times[k - 1] != 0;
+            // pages with fewer than k references have an infinite backward
+            // k-distance; break ties between them by their last reference
+            long time = fullHistory ? times[k - 1] : times[0];
+            boolean better = victimHasFullHistory && !fullHistory
+                    || victimHasFullHistory == fullHistory && time < victimTime;
+            if (better && evictable.test(entry.getKey())) {
+                victim = entry.getKey();
+                victimHasFullHistory = fullHistory;
+                victimTime = time;
+            }
+        }
+        return victim;
+    }
+}
@@ -9,8 +9,8 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, the class of the page's id MUST be registered
+ * with {@link PageCodecs}, which rebuilds pages from their bytes.
  */
 public interface Page {
 
@@ -58,4 +58,16 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that describes this page, or 0
+     * if this version of the page has not been logged.  The log must be
+     * forced up to this LSN before the page is written to disk.
+     */
+    long getLSN();
+
+    /**
+     * Record that the log record with the given LSN describes this page.
+     */
+    void setLSN(long lsn);
 }
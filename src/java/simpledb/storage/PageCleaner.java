@@ -0,0 +1,177 @@
+package simpledb.storage;
+
+import simpledb.common.Permissions;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PageCleaner writes the pages of a BufferPool whose committed changes are
+ * not on disk yet back in the background, so that the pool keeps a number
+ * of clean frames that a page miss can reuse without writing anything.
+ * <p>
+ * A cleaning pass is started when a frame is taken from a pool close to
+ * full.  It counts the frames that are free or hold a clean page, and if
+ * they are fewer than the target it writes back pages from the dirty page
+ * table, in file order, with one write for each run of consecutive pages.
+ * Every such page is written under a shared lock that is taken only if it
+ * is free, so the cleaner never waits for a transaction.  If that is not
+ * enough, as under FORCE, where committed pages are already on disk, it
+ * steals pages changed by running transactions: their changes are logged
+ * before they are written (see BufferPool.writeRun), so a page miss finds
+ * a clean frame instead of writing a dirty page itself.
+ * <p>
+ * The passes of all pools run on one daemon thread.
+ *
+ * @Threadsafe
+ */
+class PageCleaner {
+
+    /** The longest run of pages written with a single I/O */
+    private static final int MAX_RUN_PAGES = 64;
+
+    private static final ExecutorService CLEANER_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "page-cleaner");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BufferPool pool;
+    private final LockManager lockManager;
+    private final AtomicBoolean passScheduled = new AtomicBoolean();
+    private volatile int cleanFrameTarget;
+
+    PageCleaner(BufferPool pool, LockManager lockManager, int cleanFrameTarget) {
+        this.pool = pool;
+        this.lockManager = lockManager;
+        this.cleanFrameTarget = cleanFrameTarget;
+    }
+
+    int getCleanFrameTarget() {
+        return cleanFrameTarget;
+    }
+
+    void setCleanFrameTarget(int frames) {
+        this.cleanFrameTarget = Math.max(0, frames);
+    }
+
+    /**
+     * Start a cleaning pass unless one is already pending.
+     */
+    void wakeUp() {
+        if (cleanFrameTarget > 0 && passScheduled.compareAndSet(false, true)) {
+            CLEANER_EXECUTOR.execute(() -> {
+                passScheduled.set(false);
+                cleanPass();
+            });
+        }
+    }
+
+    /**
+     * Write the given pages back in the background, if they are still in
+     * the dirty page table by then.
+     */
+    void writeBack(Collection<PageId> pids) {
+        if (pids.isEmpty()) {
+            return;
+        }
+        List<PageId> requested = new ArrayList<>(pids);
+        CLEANER_EXECUTOR.execute(() -> {
+            List<Page> pages = new ArrayList<>();
+            for (PageId pid : requested) {
+                Page page = pool.residentPage(pid);
+                if (page != null && pool.needsWriteBack(page)) {
+                    pages.add(page);
+                }
+            }
+            write(pages, false);
+        });
+    }
+
+    private void cleanPass() {
+        int clean = pool.freeFrames();
+        List<Page> candidates = new ArrayList<>();
+        List<Page> uncommitted = new ArrayList<>();
+        for (Page page : pool.residentPages()) {
+            if (pool.isEvictable(page)) {
+                clean++;
+            } else if (pool.needsWriteBack(page)) {
+                candidates.add(page);
+            } else {
+                uncommitted.add(page);
+            }
+        }
+        int needed = cleanFrameTarget - clean;
+        if (needed <= 0) {
+            return;
+        }
+        Comparator<Page> fileOrder = Comparator.comparingInt((Page p) -> p.getId().getTableId())
+                .thenComparingInt(p -> p.getId().getPageNumber());
+        candidates.sort(fileOrder);
+        List<Page> pages = new ArrayList<>(candidates.subList(0, Math.min(needed, candidates.size())));
+        if (pages.size() < needed) {
+            uncommitted.sort(fileOrder);
+            pages.addAll(uncommitted.subList(0, Math.min(needed - pages.size(), uncommitted.size())));
+        }
+        write(pages, true);
+    }
+
+    /**
+     * Write back the pages that can be locked without waiting, and steal
+     * the pages changed by running transactions if asked to, coalescing
+     * runs of consecutive pages.
+     */
+    private void write(List<Page> pages, boolean steal) {
+        TransactionId cleaner = new TransactionId();
+        try {
+            List<Page> writable = new ArrayList<>();
+            for (Page page : pages) {
+                if (steal && page.isDirty() != null) {
+                    writable.add(page);
+                } else if (lockManager.tryAcquireLock(cleaner, page.getId(), Permissions.READ_ONLY)
+                        && pool.needsWriteBack(page)) {
+                    writable.add(page);
+                }
+            }
+            writable.sort(Comparator.comparingInt((Page p) -> p.getId().getTableId())
+                    .thenComparingInt(p -> p.getId().getPageNumber()));
+            List<Page> run = new ArrayList<>();
+            for (Page page : writable) {
+                if (!run.isEmpty() && !continues(run.get(run.size() - 1), page)) {
+                    writeRun(run);
+                    run = new ArrayList<>();
+                }
+                run.add(page);
+            }
+            if (!run.isEmpty()) {
+                writeRun(run);
+            }
+        } finally {
+            lockManager.releaseAllLocks(cleaner);
+        }
+    }
+
+    private static boolean continues(Page last, Page next) {
+        return last.getId().getTableId() == next.getId().getTableId()
+                && last.getId().getPageNumber() + 1 == next.getId().getPageNumber();
+    }
+
+    private void writeRun(List<Page> run) {
+        for (int i = 0; i < run.size(); i += MAX_RUN_PAGES) {
+            try {
+                pool.writeRun(run.subList(i, Math.min(i + MAX_RUN_PAGES, run.size())));
+            } catch (IOException e) {
+                // the pages stay in the dirty page table for the next pass
+                e.printStackTrace();
+            }
+        }
+    }
+}
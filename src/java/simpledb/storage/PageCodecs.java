@@ -0,0 +1,165 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodecs is the registry of the kinds of pages the log can refer to.
+ * Each kind of page id is registered with a small integer tag and a codec
+ * that writes and reads ids of that kind and rebuilds pages from their
+ * bytes.  The log stores the tag instead of class names, so reading it back
+ * is an array lookup rather than reflection.
+ * <p>
+ * HeapPageId and BTreePageId are registered here; a new kind of page must
+ * be registered with {@link #register} before it is logged or recovered.
+ *
+ * @Threadsafe
+ */
+public final class PageCodecs {
+
+    /**
+     * Writes and reads the ids of one kind of page, and rebuilds its pages.
+     */
+    public interface PageCodec {
+        /** Write the fields of a page id, without its tag */
+        void writeId(DataOutput out, PageId pid) throws IOException;
+
+        /** Read the fields of a page id written by {@link #writeId} */
+        PageId readId(DataInput in) throws IOException;
+
+        /** Rebuild the page with the given id from its serialized form */
+        Page newPage(PageId pid, byte[] data) throws IOException;
+    }
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_PAGE = 2;
+
+    private static final int MAX_TAG = 127;
+
+    private static final PageCodec[] codecs = new PageCodec[MAX_TAG + 1];
+    private static final Map<Class<? extends PageId>, Integer> tags = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPageId.class, new PageCodec() {
+            @Override
+            public void writeId(DataOutput out, PageId pid) throws IOException {
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.getPageNumber());
+            }
+
+            @Override
+            public PageId readId(DataInput in) throws IOException {
+                int tableId = in.readInt();
+                return new HeapPageId(tableId, in.readInt());
+            }
+
+            @Override
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+        register(BTREE_PAGE, BTreePageId.class, new PageCodec() {
+            @Override
+            public void writeId(DataOutput out, PageId pid) throws IOException {
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.getPageNumber());
+                out.writeInt(((BTreePageId) pid).pgcateg());
+            }
+
+            @Override
+            public PageId readId(DataInput in) throws IOException {
+                int tableId = in.readInt();
+                int pgNo = in.readInt();
+                return new BTreePageId(tableId, pgNo, in.readInt());
+            }
+
+            @Override
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                BTreePageId id = (BTreePageId) pid;
+                return switch (id.pgcateg()) {
+                    case BTreePageId.ROOT_PTR -> new BTreeRootPtrPage(id, data);
+                    case BTreePageId.HEADER -> new BTreeHeaderPage(id, data);
+                    case BTreePageId.INTERNAL -> new BTreeInternalPage(id, data, keyField(id));
+                    case BTreePageId.LEAF -> new BTreeLeafPage(id, data, keyField(id));
+                    default -> throw new IOException("bad B+ tree page category " + id.pgcateg());
+                };
+            }
+
+            private int keyField(BTreePageId id) {
+                return ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+            }
+        });
+    }
+
+    private PageCodecs() {
+    }
+
+    /**
+     * Register the codec for a kind of page id.
+     *
+     * @param tag     the tag the log stores for ids of this class, from 1 to 127
+     * @param idClass the class of the page ids
+     * @param codec   the codec of the ids and their pages
+     * @throws IllegalArgumentException if the tag is out of range or taken
+     */
+    public static synchronized void register(int tag, Class<? extends PageId> idClass, PageCodec codec) {
+        if (tag < 1 || tag > MAX_TAG) {
+            throw new IllegalArgumentException("page codec tag " + tag + " out of range");
+        }
+        if (codecs[tag] != null) {
+            throw new IllegalArgumentException("page codec tag " + tag + " is already registered");
+        }
+        codecs[tag] = codec;
+        tags.put(idClass, tag);
+    }
+
+    private static PageCodec codec(int tag) throws IOException {
+        PageCodec codec = tag >= 1 && tag <= MAX_TAG ? codecs[tag] : null;
+        if (codec == null) {
+            throw new IOException("no page codec for tag " + tag);
+        }
+        return codec;
+    }
+
+    private static int tagOf(PageId pid) throws IOException {
+        Integer tag = tags.get(pid.getClass());
+        if (tag == null) {
+            throw new IOException("no page codec for " + pid.getClass().getName());
+        }
+        return tag;
+    }
+
+    /**
+     * Write a page id as its tag followed by its fields.
+     */
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int tag = tagOf(pid);
+        out.writeByte(tag);
+        codecs[tag].writeId(out, pid);
+    }
+
+    /**
+     * Read a page id written by {@link #writePageId}.
+     */
+    public static PageId readPageId(DataInput in) throws IOException {
+        return codec(in.readByte()).readId(in);
+    }
+
+    /**
+     * Rebuild a page from its id and serialized form.
+     */
+    public static Page newPage(PageId pid, byte[] data) throws IOException {
+        return codecs[tagOf(pid)].newPage(pid, data);
+    }
+}
@@ -0,0 +1,187 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PageDelta is the difference between two images of a page, as the byte
+ * ranges in which they differ.  It is what an UPDATE log record stores
+ * instead of the two complete images: inserting one tuple into a HeapPage
+ * changes a header byte and one slot, a few dozen bytes out of 4096.
+ * <p>
+ * Each range holds its bytes before and after the change.  Redo writes the
+ * after bytes and undo the before bytes, and neither looks at the rest of
+ * the page, so applying a delta twice has the same effect as applying it
+ * once.  A delta for a compensation record only needs to be redone and is
+ * kept without before bytes.
+ */
+class PageDelta {
+
+    /**
+     * Differences separated by at most this many equal bytes go in one
+     * range, since a range costs 8 bytes of offset and length
+     */
+    private static final int MERGE_GAP = 8;
+
+    private final int pageLength;
+    private final int[] offsets;
+    private final byte[][] before;  // null if the delta cannot be undone
+    private final byte[][] after;
+
+    private PageDelta(int pageLength, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageLength = pageLength;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta that turns the before image into the after image
+     */
+    static PageDelta between(byte[] beforeImage, byte[] afterImage) {
+        if (beforeImage.length != afterImage.length) {
+            throw new IllegalArgumentException("page images differ in length: "
+                    + beforeImage.length + " and " + afterImage.length);
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < afterImage.length) {
+            if (beforeImage[i] == afterImage[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;  // exclusive end of the last difference
+            for (i = end; i < afterImage.length && i - end <= MERGE_GAP; i++) {
+                if (beforeImage[i] != afterImage[i]) {
+                    end = i + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            System.arraycopy(beforeImage, start, before[r], 0, len);
+            System.arraycopy(afterImage, start, after[r], 0, len);
+        }
+        return new PageDelta(afterImage.length, offsets, before, after);
+    }
+
+    /**
+     * @return a redo-only delta that undoes this one, for a compensation
+     * record
+     */
+    PageDelta compensation() {
+        if (before == null) {
+            throw new IllegalStateException("a compensation cannot be undone");
+        }
+        return new PageDelta(pageLength, offsets, null, before);
+    }
+
+    /**
+     * @return the length of the page the delta applies to
+     */
+    int pageLength() {
+        return pageLength;
+    }
+
+    /**
+     * @return the number of bytes of the page covered by the delta
+     */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] range : after) {
+            n += range.length;
+        }
+        return n;
+    }
+
+    /**
+     * Apply the delta to a page image in place.
+     */
+    void redo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(after[r], 0, page, offsets[r], after[r].length);
+        }
+    }
+
+    /**
+     * Revert the delta on a page image in place.
+     */
+    void undo(byte[] page) {
+        if (before == null) {
+            throw new IllegalStateException("a compensation cannot be undone");
+        }
+        for (int r = offsets.length - 1; r >= 0; r--) {
+            System.arraycopy(before[r], 0, page, offsets[r], before[r].length);
+        }
+    }
+
+    /**
+     * Write the delta: the page length, the number of ranges, and for each
+     * range its offset, its length, its before bytes (unless this is a
+     * compensation delta) and its after bytes.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(pageLength);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            if (before != null) {
+                out.write(before[r]);
+            }
+            out.write(after[r]);
+        }
+    }
+
+    /**
+     * Read a delta written by {@link #writeTo}.
+     *
+     * @param undoable whether the delta was written with before bytes
+     */
+    static PageDelta readFrom(DataInput in, boolean undoable) throws IOException {
+        int pageLength = in.readInt();
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = undoable ? new byte[numRanges][] : null;
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (undoable) {
+                before[r] = new byte[len];
+                in.readFully(before[r]);
+            }
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageLength, offsets, before, after);
+    }
+
+    /**
+     * Skip over a delta written by {@link #writeTo}.
+     *
+     * @param undoable whether the delta was written with before bytes
+     */
+    static void skip(DataInput in, boolean undoable) throws IOException {
+        in.readInt();
+        int numRanges = in.readInt();
+        for (int r = 0; r < numRanges; r++) {
+            in.readInt();
+            int len = in.readInt();
+            in.skipBytes(undoable ? 2 * len : len);
+        }
+    }
+}
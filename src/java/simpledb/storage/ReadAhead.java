@@ -0,0 +1,111 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ReadAhead watches the pages a single scan asks for and, once the scan
+ * reads a file sequentially, loads the next pages into the BufferPool on a
+ * background I/O thread so they are resident by the time the scan gets
+ * there.
+ * <p>
+ * The read-ahead window starts at one page.  It doubles whenever the scan
+ * reaches a page whose prefetch has not finished yet, i.e. whenever the scan
+ * consumes pages faster than the window hides the I/O, and it is capped at
+ * {@link BufferPool#getReadAheadLimit} so that one scan cannot evict the rest
+ * of the pool.  A non-sequential access resets the window.
+ * <p>
+ * A ReadAhead belongs to one scan and is not thread safe.
+ */
+class ReadAhead {
+
+    /** Number of consecutive pages read before the access counts as sequential */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private static final int IO_THREADS = 2;
+
+    private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** A prefetch that has been handed to the I/O executor */
+    private static class Prefetch {
+        final int pageNo;
+        final CompletableFuture<Void> done;
+
+        Prefetch(int pageNo, CompletableFuture<Void> done) {
+            this.pageNo = pageNo;
+            this.done = done;
+        }
+    }
+
+    private final int tableId;
+    private final Deque<Prefetch> issued = new ArrayDeque<>();
+    private int lastPage = -1;
+    private int runLength;
+    private int window = 1;
+    // highest page number handed to the executor so far
+    private int prefetchedUpTo = -1;
+
+    ReadAhead(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /**
+     * Tell the read-ahead that the scan is about to read the given page, and
+     * start prefetching the pages after it if the scan is sequential.
+     *
+     * @param pageNo   the page the scan reads next
+     * @param numPages the number of pages in the file
+     */
+    void pageRequested(int pageNo, int numPages) {
+        if (pageNo == lastPage + 1) {
+            runLength++;
+        } else {
+            reset();
+            runLength = 1;
+        }
+        lastPage = pageNo;
+
+        while (!issued.isEmpty() && issued.peekFirst().pageNo < pageNo) {
+            issued.pollFirst();
+        }
+        if (!issued.isEmpty() && issued.peekFirst().pageNo == pageNo) {
+            if (!issued.pollFirst().done.isDone()) {
+                // the scan caught up with the prefetches: read further ahead
+                window *= 2;
+            }
+        }
+
+        int limit = Database.getBufferPool().getReadAheadLimit();
+        window = Math.min(window, Math.max(limit, 1));
+        if (runLength < SEQUENTIAL_THRESHOLD || limit == 0) {
+            return;
+        }
+        int last = Math.min(pageNo + window, numPages - 1);
+        for (int p = Math.max(prefetchedUpTo + 1, pageNo + 1); p <= last; p++) {
+            PageId pid = new HeapPageId(tableId, p);
+            BufferPool pool = Database.getBufferPool();
+            issued.addLast(new Prefetch(p, CompletableFuture.runAsync(() -> pool.prefetchPage(pid), IO_EXECUTOR)));
+            prefetchedUpTo = p;
+        }
+    }
+
+    /**
+     * Forget the current sequential run, e.g. when the scan is rewound.
+     */
+    void reset() {
+        issued.clear();
+        runLength = 0;
+        window = 1;
+        prefetchedUpTo = -1;
+        lastPage = -1;
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * 2Q eviction (Johnson and Shasha).  Pages read into the pool for the first
+ * time enter a FIFO queue, A1in.  Pages evicted from A1in are remembered, by
+ * id only, in a second FIFO queue, A1out.  A page that is read again while it
+ * is remembered in A1out has proven it is hot and goes to the LRU queue Am.
+ * Pages that a scan reads only once therefore pass through A1in without
+ * disturbing the pages in Am.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    /** fraction of the resident pages A1in may hold before it is preferred for eviction */
+    private static final double IN_FRACTION = 0.25;
+    /** size of A1out relative to the number of resident pages */
+    private static final double OUT_FRACTION = 0.5;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    // access-ordered, so iteration starts at the least recently used page
+    private final LinkedHashMap<PageId, Boolean> am;
+
+    public TwoQueueEvictionPolicy() {
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public void pageAdded(PageId pid) {
+        if (a1in.contains(pid) || am.containsKey(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    @Override
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored; they are usually correlated
+        // references from the same scan
+        am.get(pid);
+    }
+
+    @Override
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            int maxOut = Math.max(1, (int) ((a1in.size() + am.size()) * OUT_FRACTION));
+            Iterator<PageId> it = a1out.iterator();
+            while (a1out.size() > maxOut && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    @Override
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        int maxIn = Math.max(1, (int) ((a1in.size() + am.size()) * IN_FRACTION));
+        if (a1in.size() >= maxIn || am.isEmpty()) {
+            PageId victim = firstEvictable(a1in, evictable);
+            if (victim != null) {
+                return victim;
+            }
+        }
+        PageId victim = firstEvictable(am.keySet(), evictable);
+        return victim != null ? victim : firstEvictable(a1in, evictable);
+    }
+
+    private static PageId firstEvictable(Set<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,365 @@
+package simpledb.transaction;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.PageId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager implements page-level strict two-phase locking on behalf of
+ * the BufferPool.  Each page has a shared/exclusive lock; a transaction
+ * holding the only shared lock on a page may upgrade it to an exclusive one.
+ * <p>
+ * Lock state is kept per page in a ConcurrentHashMap, and every page lock is
+ * guarded by its own monitor, so acquiring an uncontended lock never blocks
+ * on a global latch.  The set of pages locked by each transaction is tracked
+ * so that all locks can be released when the transaction completes.
+ * <p>
+ * Deadlocks are detected with a waits-for graph.  A transaction that has to
+ * block records the lock it is waiting for; its outgoing edges are the
+ * current holders of that lock.  Every time a transaction blocks, the graph is
+ * searched from it, since any new cycle must go through the new edges.  When
+ * a cycle is found one transaction in it is chosen as the victim according to
+ * the {@link VictimPolicy} and aborted.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * How to choose which transaction to abort when a deadlock is detected.
+     */
+    public enum VictimPolicy {
+        /** abort the most recently started transaction */
+        YOUNGEST,
+        /** abort the transaction holding the fewest page locks */
+        FEWEST_LOCKS,
+        /** abort the transaction that has written the fewest log bytes */
+        LEAST_LOG
+    }
+
+    /**
+     * The lock on a single page.  Updates are made while holding the monitor
+     * of the PageLock itself; the holders are also readable without the
+     * monitor so that deadlock detection can walk the waits-for graph.
+     */
+    private static class PageLock {
+        final Set<TransactionId> sharedHolders = ConcurrentHashMap.newKeySet();
+        volatile TransactionId exclusiveHolder;
+        int waiters;
+        // set once the lock has been removed from the lock table; threads
+        // that race with the removal must look the lock up again
+        boolean retired;
+
+        boolean isHeldBy(TransactionId tid) {
+            return tid.equals(exclusiveHolder) || sharedHolders.contains(tid);
+        }
+
+        boolean isFree() {
+            return exclusiveHolder == null && sharedHolders.isEmpty();
+        }
+
+        /**
+         * Try to grant the lock to tid, upgrading a shared lock if possible.
+         *
+         * @return true if tid now holds the lock in the requested mode
+         */
+        boolean tryGrant(TransactionId tid, Permissions perm) {
+            if (tid.equals(exclusiveHolder)) {
+                return true;
+            }
+            if (perm == Permissions.READ_ONLY) {
+                if (exclusiveHolder == null) {
+                    sharedHolders.add(tid);
+                    return true;
+                }
+                return false;
+            }
+            if (exclusiveHolder == null && (sharedHolders.isEmpty()
+                    || (sharedHolders.size() == 1 && sharedHolders.contains(tid)))) {
+                exclusiveHolder = tid;
+                sharedHolders.clear();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the transactions that prevent tid from being granted the
+         * lock in the requested mode
+         */
+        List<TransactionId> blockers(TransactionId tid, Permissions perm) {
+            List<TransactionId> result = new ArrayList<>();
+            TransactionId exclusive = exclusiveHolder;
+            if (exclusive != null && !exclusive.equals(tid)) {
+                result.add(exclusive);
+            }
+            if (perm == Permissions.READ_WRITE) {
+                for (TransactionId holder : sharedHolders) {
+                    if (!holder.equals(tid)) {
+                        result.add(holder);
+                    }
+                }
+            }
+            return result;
+        }
+
+        void release(TransactionId tid) {
+            if (tid.equals(exclusiveHolder)) {
+                exclusiveHolder = null;
+            }
+            sharedHolders.remove(tid);
+        }
+    }
+
+    /**
+     * A blocked lock request, i.e. the outgoing edges of a node in the
+     * waits-for graph.
+     */
+    private static class WaitRequest {
+        final PageLock lock;
+        final Permissions perm;
+
+        WaitRequest(PageLock lock, Permissions perm) {
+            this.lock = lock;
+            this.perm = perm;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId, PageLock> pageLocks;
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> transactionLocks;
+
+    // the waits-for graph: blocked transactions and the lock they wait for
+    private final ConcurrentHashMap<TransactionId, WaitRequest> waitingFor;
+    // transactions chosen as deadlock victims that have not noticed yet
+    private final Set<TransactionId> victims;
+    // serializes cycle detection so concurrent detections agree on victims
+    private final Object detectorLock = new Object();
+
+    private volatile VictimPolicy victimPolicy;
+
+    public LockManager() {
+        this(VictimPolicy.YOUNGEST);
+    }
+
+    public LockManager(VictimPolicy victimPolicy) {
+        this.pageLocks = new ConcurrentHashMap<>();
+        this.transactionLocks = new ConcurrentHashMap<>();
+        this.waitingFor = new ConcurrentHashMap<>();
+        this.victims = ConcurrentHashMap.newKeySet();
+        this.victimPolicy = victimPolicy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /**
+     * Acquire a lock on the specified page on behalf of the transaction,
+     * blocking until it is granted.  READ_ONLY requests a shared lock and
+     * READ_WRITE an exclusive one.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *                                     deadlock and this transaction was chosen as the victim
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        try {
+            while (true) {
+                PageLock lock = pageLocks.computeIfAbsent(pid, k -> new PageLock());
+                PageLock victimLock = null;
+                synchronized (lock) {
+                    if (lock.retired) {
+                        continue;
+                    }
+                    if (lock.tryGrant(tid, perm)) {
+                        victims.remove(tid);
+                        transactionLocks.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                        return;
+                    }
+                    waitingFor.put(tid, new WaitRequest(lock, perm));
+                    TransactionId victim = detectDeadlock(tid);
+                    if (victims.remove(tid)) {
+                        throw new TransactionAbortedException();
+                    }
+                    if (victim != null) {
+                        // wake the victim up after leaving this monitor, so we
+                        // never hold two page lock monitors at once
+                        WaitRequest request = waitingFor.get(victim);
+                        victimLock = request == null ? null : request.lock;
+                    } else {
+                        lock.waiters++;
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new TransactionAbortedException();
+                        } finally {
+                            lock.waiters--;
+                        }
+                        if (victims.remove(tid)) {
+                            throw new TransactionAbortedException();
+                        }
+                    }
+                }
+                if (victimLock != null) {
+                    synchronized (victimLock) {
+                        victimLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            waitingFor.remove(tid);
+        }
+    }
+
+    /**
+     * Acquire a lock on the specified page on behalf of the transaction if
+     * it can be granted without waiting.
+     *
+     * @return true if the lock was granted, false if another transaction
+     * holds a conflicting lock
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm) {
+        while (true) {
+            PageLock lock = pageLocks.computeIfAbsent(pid, k -> new PageLock());
+            synchronized (lock) {
+                if (lock.retired) {
+                    continue;
+                }
+                if (!lock.tryGrant(tid, perm)) {
+                    return false;
+                }
+                transactionLocks.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Search the waits-for graph for a cycle through the blocked transaction
+     * tid and, if there is one, mark a victim in it.
+     *
+     * @return the victim chosen, or null if there is no deadlock (or every
+     * transaction in the cycle is already being aborted)
+     */
+    private TransactionId detectDeadlock(TransactionId tid) {
+        synchronized (detectorLock) {
+            List<TransactionId> cycle = new ArrayList<>();
+            if (!findCycle(tid, tid, new HashSet<>(), cycle)) {
+                return null;
+            }
+            for (TransactionId member : cycle) {
+                if (victims.contains(member)) {
+                    // already being resolved
+                    return null;
+                }
+            }
+            TransactionId victim = Collections.max(cycle, victimOrder());
+            victims.add(victim);
+            return victim;
+        }
+    }
+
+    /**
+     * Depth-first search for a path from current back to target.  On success
+     * path holds the transactions on the cycle.
+     */
+    private boolean findCycle(TransactionId target, TransactionId current,
+                              Set<TransactionId> visited, List<TransactionId> path) {
+        WaitRequest request = waitingFor.get(current);
+        if (request == null || !visited.add(current)) {
+            return false;
+        }
+        path.add(current);
+        for (TransactionId next : request.lock.blockers(current, request.perm)) {
+            if (next.equals(target) || findCycle(target, next, visited, path)) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /**
+     * @return an ordering under which the preferred victim is the greatest
+     */
+    private Comparator<TransactionId> victimOrder() {
+        return switch (victimPolicy) {
+            case YOUNGEST -> Comparator.comparingLong(TransactionId::getId);
+            case FEWEST_LOCKS -> Comparator.<TransactionId>comparingInt(t -> getLockedPages(t).size())
+                    .reversed()
+                    .thenComparingLong(TransactionId::getId);
+            case LEAST_LOG -> Comparator.<TransactionId>comparingLong(t -> Database.getLogFile().getLogBytesWritten(t))
+                    .reversed()
+                    .thenComparingLong(TransactionId::getId);
+        };
+    }
+
+    /**
+     * Release the lock the transaction holds on the specified page, if any.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        PageLock lock = pageLocks.get(pid);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.release(tid);
+                if (lock.isFree() && lock.waiters == 0) {
+                    lock.retired = true;
+                    pageLocks.remove(pid, lock);
+                }
+                lock.notifyAll();
+            }
+        }
+        Set<PageId> pages = transactionLocks.get(tid);
+        if (pages != null) {
+            pages.remove(pid);
+        }
+    }
+
+    /**
+     * Release every lock held by the transaction.
+     */
+    public void releaseAllLocks(TransactionId tid) {
+        victims.remove(tid);
+        Set<PageId> pages = transactionLocks.remove(tid);
+        if (pages == null) {
+            return;
+        }
+        for (PageId pid : pages) {
+            releaseLock(tid, pid);
+        }
+    }
+
+    /**
+     * @return true if the transaction holds a shared or exclusive lock on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        PageLock lock = pageLocks.get(pid);
+        if (lock == null) {
+            return false;
+        }
+        synchronized (lock) {
+            return lock.isHeldBy(tid);
+        }
+    }
+
+    /**
+     * @return the pages on which the transaction currently holds a lock
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = transactionLocks.get(tid);
+        return pages == null ? Collections.emptySet() : pages;
+    }
+}
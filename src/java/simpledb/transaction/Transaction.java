@@ -50,14 +50,10 @@ public class Transaction {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
+            // Release locks and flush pages if needed; a commit also
+            // writes the commit log record
             Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
-            }
-
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
@@ -3,6 +3,9 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -14,6 +17,7 @@ import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
 import simpledb.execution.OpIterator;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class AggregateTest extends SimpleDbTestBase {
@@ -108,6 +112,23 @@ public class AggregateTest extends SimpleDbTestBase {
     assertEquals(expected, actual);
   }
 
+  /**
+   * Unit test for Aggregate.getTupleDesc() naming its columns, and typing a
+   * COUNT of strings as an INT
+   */
+  @Test public void getTupleDescNames() {
+    TupleDesc child = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.STRING_TYPE },
+        new String[]{ "t.id", "t.name" });
+    Aggregate op = new Aggregate(new TupleIterator(child, Collections.emptyList()),
+        new int[]{ 1, 0 }, new int[]{ 0 },
+        new Aggregator.Op[]{ Aggregator.Op.COUNT, Aggregator.Op.MAX }, 1);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(Utility.getTupleDesc(3), actual);
+    assertEquals("t.id", actual.getFieldName(0));
+    assertEquals("count(t.name)", actual.getFieldName(1));
+    assertEquals("max(t.id)", actual.getFieldName(2));
+  }
+
   /**
    * Unit test for Aggregate.rewind()
    */
@@ -191,6 +212,57 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates over the
+   * same grouping
+   */
+  @Test public void multipleAggregates() throws Exception {
+    Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+        Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    Aggregate op = new Aggregate(scan1, new int[] { 1, 1, 1, 1, 1 }, new int[] { 0 }, ops, 1);
+    assertEquals(Utility.getTupleDesc(6), op.getTupleDesc());
+    OpIterator expected = TestUtil.createTupleList(6,
+        new int[] { 1, 2, 6, 12, 4, 3,
+                    3, 2, 6, 12, 4, 3,
+                    5, 7, 7, 7, 7, 1 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() grouping by two fields, in the order
+   * they are given
+   */
+  @Test public void multiColumnGroupBy() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 2, 4,
+                    1, 1, 6,
+                    2, 1, 2,
+                    2, 1, 5 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 0 }, new int[] { 1, 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT }, 1);
+    OpIterator expected = TestUtil.createTupleList(4,
+        new int[] { 1, 1, 8, 2,
+                    2, 1, 4, 1,
+                    1, 2, 7, 2 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    assertEquals(3, countTuples(op));
+  }
+
+  private static int countTuples(OpIterator op) throws Exception {
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    return count;
+  }
+
   /**
    * JUnit suite target
    */
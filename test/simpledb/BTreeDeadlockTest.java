@@ -17,7 +17,10 @@ import simpledb.systemtest.SimpleDbTestBase;
 import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class BTreeDeadlockTest extends SimpleDbTestBase {
@@ -25,6 +28,7 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
 
 	private static final int POLL_INTERVAL = 100;
 	private static final int WAIT_INTERVAL = 200;
+	private static final int MAX_RESTARTS = 50;
 
 	// just so we have a pointer shorter than Database.getBufferPool
 	private BufferPool bp;
@@ -117,12 +121,16 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
 		BTreeWriter writer1 = startWriter(tid1, item1, count1);
 		BTreeWriter writer2 = startWriter(tid2, item2, count2);
 
+		int restarts = 0;
 		while (true) {
 			Thread.sleep(POLL_INTERVAL);
 
 			if(writer1.succeeded() || writer2.succeeded()) break;
 
 			if (writer1.getError() != null) {
+				assertAborted(writer1.getError());
+				assertTrue("deadlock not resolved after " + MAX_RESTARTS + " restarts",
+						++restarts < MAX_RESTARTS);
 				writer1 = null;
 				bp.transactionComplete(tid1);
 				Thread.sleep(rand.nextInt(WAIT_INTERVAL));
@@ -132,6 +140,9 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
 			}
 
 			if (writer2.getError() != null) {
+				assertAborted(writer2.getError());
+				assertTrue("deadlock not resolved after " + MAX_RESTARTS + " restarts",
+						++restarts < MAX_RESTARTS);
 				writer2 = null;
 				bp.transactionComplete(tid2);
 				Thread.sleep(rand.nextInt(WAIT_INTERVAL));
@@ -145,6 +156,15 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
 		System.out.println("testReadWriteDeadlock resolved deadlock");
 	}
 
+	/**
+	 * A writer may only fail by being aborted to break the deadlock; any
+	 * other error would fail again on every restart.
+	 */
+	private static void assertAborted(Exception e) {
+		if (!(e instanceof TransactionAbortedException))
+			throw new AssertionError("writer failed instead of aborting", e);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -6,6 +6,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -140,6 +143,99 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for the background page cleaner: once the pool runs short of
+     * clean frames, committed pages that are only in the log are written back
+     */
+    @Test public void cleanCommittedPages() throws Exception {
+    	BufferPool pool = Database.resetBufferPool(20);
+    	pool.setForceAtCommit(false);
+
+    	// 12 committed pages stay in the pool, dirty on disk
+    	List<Tuple> batch = new ArrayList<>();
+    	for (int i = 0; i < 504 * 12; ++i) {
+    		batch.add(Utility.getHeapTuple(i, 2));
+    	}
+    	TransactionId writer = new TransactionId();
+    	pool.insertTuples(writer, empty.getId(), batch);
+    	pool.transactionComplete(writer);
+    	assertEquals(12, pool.getDirtyPageTable().size());
+    	pool.setCleanFrameTarget(10);
+
+    	// a miss leaves 7 free frames and wakes the cleaner up
+    	HeapFile other = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+    	pool.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+    	for (int i = 0; i < 500 && pool.getDirtyPageTable().size() > 10; ++i) {
+    		Thread.sleep(10);
+    	}
+    	assertEquals(10, pool.getDirtyPageTable().size());
+
+    	for (int pgNo = 0; pgNo < 12; ++pgNo) {
+    		HeapPageId pid = new HeapPageId(empty.getId(), pgNo);
+    		if (!pool.getDirtyPageTable().containsKey(pid)) {
+    			HeapPage onDisk = (HeapPage) empty.readPage(pid);
+    			assertEquals(0, onDisk.getNumEmptySlots());
+    		}
+    	}
+    }
+
+    // class to record the threads that write its pages
+    static class HeapFileWriters extends HeapFile {
+
+    	final Set<Thread> writers = ConcurrentHashMap.newKeySet();
+    	final AtomicInteger pagesWritten = new AtomicInteger();
+
+    	public HeapFileWriters(HeapFile f) {
+    		super(f.getFile(), f.getTupleDesc());
+    	}
+
+    	@Override
+    	public void writePage(Page page) throws IOException {
+    		writers.add(Thread.currentThread());
+    		pagesWritten.incrementAndGet();
+    		super.writePage(page);
+    	}
+
+    	@Override
+    	public void writePages(List<Page> pages) throws IOException {
+    		writers.add(Thread.currentThread());
+    		pagesWritten.addAndGet(pages.size());
+    		super.writePages(pages);
+    	}
+    }
+
+    /**
+     * Unit test for the background page cleaner under FORCE: with the pool
+     * full of pages of a running transaction, the cleaner steals some, so
+     * that a miss finds a clean frame instead of writing a page itself
+     */
+    @Test public void missOnDirtyPoolDoesNotWrite() throws Exception {
+    	HeapFileWriters tracked = new HeapFileWriters(empty);
+    	Database.getCatalog().addTable(tracked, SystemTestUtil.getUUID());
+    	BufferPool pool = Database.resetBufferPool(20);
+    	pool.setCleanFrameTarget(10);
+
+    	// 20 pages of a running transaction fill the pool
+    	List<Tuple> batch = new ArrayList<>();
+    	for (int i = 0; i < 504 * 20; ++i) {
+    		batch.add(Utility.getHeapTuple(i, 2));
+    	}
+    	pool.insertTuples(tid, tracked.getId(), batch);
+    	for (int i = 0; i < 500 && tracked.pagesWritten.get() < 10; ++i) {
+    		Thread.sleep(10);
+    	}
+    	assertTrue(tracked.pagesWritten.get() >= 10);
+
+    	HeapFile other = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+    	pool.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+    	assertFalse(tracked.writers.contains(Thread.currentThread()));
+
+    	// the stolen pages are still the transaction's
+    	Tuple t = Utility.getHeapTuple(0, 2);
+    	pool.insertTuple(tid, tracked.getId(), t);
+    	assertEquals(20, t.getRecordId().getPageId().getPageNumber());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,89 @@
+package simpledb;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.ClockEvictionPolicy;
+import simpledb.storage.EvictionPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruKEvictionPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.TwoQueueEvictionPolicy;
+
+public class EvictionPolicyTest {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Reference a hot page repeatedly, then scan through cold pages, evicting
+     * a page for every new one like a full buffer pool would.  Scan-resistant
+     * policies must keep the hot page resident.
+     */
+    private void checkScanResistant(EvictionPolicy policy) {
+        PageId hot = pid(0);
+        policy.pageAdded(hot);
+        for (int i = 0; i < 5; i++) {
+            policy.pageAccessed(hot);
+        }
+        for (int i = 1; i < 4; i++) {
+            policy.pageAdded(pid(i));
+        }
+        for (int i = 4; i < 100; i++) {
+            PageId victim = policy.chooseVictim(p -> true);
+            assertNotEquals(hot, victim);
+            policy.pageRemoved(victim);
+            policy.pageAdded(pid(i));
+            policy.pageAccessed(hot);
+        }
+    }
+
+    @Test public void lruKScanResistant() {
+        checkScanResistant(new LruKEvictionPolicy());
+    }
+
+    @Test public void twoQueueScanResistant() {
+        // the hot page has to be re-referenced after leaving A1in to reach Am
+        TwoQueueEvictionPolicy policy = new TwoQueueEvictionPolicy();
+        policy.pageAdded(pid(0));
+        policy.pageRemoved(pid(0));
+        checkScanResistant(policy);
+    }
+
+    @Test public void clockGivesSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        for (int i = 0; i < 3; i++) {
+            policy.pageAdded(pid(i));
+        }
+        // the first sweep clears every reference bit, then page 0 goes
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+        // page 1 was referenced again, so page 2 goes before it
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(2));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+    }
+
+    @Test public void skipsPagesThatAreNotEvictable() {
+        EvictionPolicy[] policies = {
+                new ClockEvictionPolicy(), new LruKEvictionPolicy(), new TwoQueueEvictionPolicy()
+        };
+        for (EvictionPolicy policy : policies) {
+            policy.pageAdded(pid(0));
+            policy.pageAdded(pid(1));
+            assertEquals(pid(1), policy.chooseVictim(p -> p.equals(pid(1))));
+            assertNull(policy.chooseVictim(p -> false));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
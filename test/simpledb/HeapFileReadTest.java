@@ -1,12 +1,15 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
 import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -125,6 +128,106 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    @Test
+    public void testMemoryMappedScan() throws Exception {
+        // two full pages, so the insert below has to grow the file
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile mapped = SystemTestUtil.createRandomHeapFile(2, 1008, null, tuples);
+        mapped.setMemoryMapped(true);
+        assertEquals(2, mapped.numPages());
+
+        Tuple extra = new Tuple(td);
+        extra.setField(0, new IntField(-1));
+        extra.setField(1, new IntField(-2));
+        Database.getBufferPool().insertTuple(tid, mapped.getId(), extra);
+        Database.getBufferPool().transactionComplete(tid);
+        tuples.add(Arrays.asList(-1, -2));
+        assertEquals(3, mapped.numPages());
+
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(mapped, tid, tuples);
+    }
+
+    @Test
+    public void testScanLargerThanPool() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile large = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, tuples);
+        BufferPool pool = Database.resetBufferPool(8);
+        assertEquals(2, pool.getReadAheadLimit());
+
+        // a prefetched page is found by the next getPage
+        HeapPageId pid = new HeapPageId(large.getId(), 0);
+        assertTrue(pool.prefetchPage(pid));
+        assertFalse(pool.prefetchPage(pid));
+        pool.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1.0, pool.getHitRatio(), 0.0);
+
+        SystemTestUtil.matchTuples(large, tid, tuples);
+    }
+
+    /**
+     * A HeapFile that counts its page reads, each of which takes a while
+     */
+    private static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Concurrent misses on one page read it from the file once, and the
+     * threads that wait for that read count as misses
+     */
+    @Test
+    public void testConcurrentMissesReadOnce() throws Exception {
+        SlowHeapFile slow = new SlowHeapFile(hf);
+        Database.getCatalog().addTable(slow, "slow");
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapPageId pid = new HeapPageId(slow.getId(), 0);
+
+        final int threads = 8;
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Thread> faulting = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<TransactionId> tids = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId t2 = new TransactionId();
+                    tids.add(t2);
+                    start.await();
+                    assertNotNull(pool.getPage(t2, pid, Permissions.READ_ONLY));
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            faulting.add(t);
+            t.start();
+        }
+        for (Thread t : faulting) {
+            t.join();
+        }
+        for (TransactionId t : tids) {
+            pool.transactionComplete(t);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(1, slow.reads.get());
+        assertEquals(0.0, pool.getHitRatio(), 0.0);
+    }
+
     /**
      * JUnit suite target
      */
@@ -12,7 +12,9 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +52,72 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.deleteTuple() followed by HeapFile.insertTuple():
+     * a slot freed on a full page is found again without growing the file
+     */
+    @Test public void reuseDeletedSlot() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 1008; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 0) {
+                first = t;
+            }
+        }
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Page page = empty.insertTuple(tid, Utility.getHeapTuple(-1, 2)).get(0);
+        assertEquals(0, page.getId().getPageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuples(): a batch larger than a page is
+     * appended as whole new pages
+     */
+    @Test public void insertBatch() throws Exception {
+        List<Tuple> batch = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        List<Page> pages = empty.insertTuples(tid, batch);
+        assertEquals(3, pages.size());
+        assertEquals(3, empty.numPages());
+        assertEquals(504 * 3 - 1200, ((HeapPage) pages.get(2)).getNumEmptySlots());
+
+        // the next tuple goes into the free space of the last page
+        Page page = empty.insertTuple(tid, Utility.getHeapTuple(-1, 2)).get(0);
+        assertEquals(2, page.getId().getPageNumber());
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.writePages(): runs of consecutive pages and
+     * single pages, including one that extends the file
+     */
+    @Test public void writePages() throws Exception {
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 1200, null, null);
+        int tableId = smallFile.getId();
+        assertEquals(3, smallFile.numPages());
+
+        List<Page> pages = new ArrayList<>();
+        for (int pgNo : new int[]{0, 1, 3}) {
+            HeapPage page = new HeapPage(new HeapPageId(tableId, pgNo), HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            pages.add(page);
+        }
+        smallFile.writePages(pages);
+
+        assertEquals(4, smallFile.numPages());
+        for (Page page : pages) {
+            assertArrayEquals(page.getPageData(), smallFile.readPage(page.getId()).getPageData());
+        }
+        // the page between the runs is untouched
+        assertEquals(504 * 3 - 1200, ((HeapPage) smallFile.readPage(new HeapPageId(tableId, 2))).getNumEmptySlots());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
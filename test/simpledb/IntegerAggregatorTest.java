@@ -130,6 +130,65 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test that SUM_COUNT partials merged by SC_AVG give the average of all
+   * their input
+   */
+  @Test public void sumCountThenScAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    for (int i = 0; i < 4; i++)
+      first.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      second.mergeTupleIntoGroup(scan1.next());
+
+    OpIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+        new int[] { 1, 0, 12, 3,
+                    3, 0, 2, 1 }), it);
+
+    IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    for (IntegerAggregator partial : new IntegerAggregator[] { first, second }) {
+      it = partial.iterator();
+      it.open();
+      while (it.hasNext())
+        avg.mergeTupleIntoGroup(it.next());
+    }
+    it = avg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4,
+                    3, 4,
+                    5, 7 }), it);
+  }
+
+  /**
+   * Test that SUM_COUNT passes on a sum too large for an int, so that SC_AVG
+   * still averages correctly
+   */
+  @Test public void sumCountPastIntRange() throws Exception {
+    OpIterator big = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE - 3 });
+    big.open();
+    IntegerAggregator partial = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    while (big.hasNext())
+      partial.mergeTupleIntoGroup(big.next());
+
+    IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    OpIterator it = partial.iterator();
+    it.open();
+    while (it.hasNext())
+      avg.mergeTupleIntoGroup(it.next());
+    it = avg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE - 1 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
@@ -112,6 +112,22 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() when the outer child does not fit in one
+   * block, so the inner child is scanned once per block
+   */
+  @Test public void smallBlocks() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 0);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+
+    op.rewind();
+    gtJoin.rewind();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,130 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class LockManagerTest {
+    private PageId p0, p1, p2;
+    private TransactionId older, younger;
+
+    /** Time to wait for a blocked request to be resolved, in ms */
+    private static final int TIMEOUT = 2000;
+
+    @Before public void setUp() {
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        p2 = new HeapPageId(1, 2);
+        older = new TransactionId();
+        younger = new TransactionId();
+    }
+
+    /** Thread that requests a lock and records whether it was aborted. */
+    private static class Requester extends Thread {
+        private final LockManager lm;
+        private final TransactionId tid;
+        private final PageId pid;
+        private final Permissions perm;
+        volatile boolean acquired;
+        volatile boolean aborted;
+
+        Requester(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(tid, pid, perm);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+                lm.releaseAllLocks(tid);
+            }
+        }
+    }
+
+    /**
+     * Set up a cycle where heavy holds two locks and light holds one, and
+     * return the requesters of the two blocked locks, heavy's first.
+     */
+    private Requester[] deadlock(LockManager lm, TransactionId heavy, TransactionId light)
+            throws Exception {
+        lm.acquireLock(heavy, p0, Permissions.READ_WRITE);
+        lm.acquireLock(heavy, p1, Permissions.READ_WRITE);
+        lm.acquireLock(light, p2, Permissions.READ_WRITE);
+
+        Requester heavyWaits = new Requester(lm, heavy, p2, Permissions.READ_WRITE);
+        Requester lightWaits = new Requester(lm, light, p0, Permissions.READ_ONLY);
+        heavyWaits.start();
+        Thread.sleep(50);
+        lightWaits.start();
+        heavyWaits.join(TIMEOUT);
+        lightWaits.join(TIMEOUT);
+        return new Requester[]{heavyWaits, lightWaits};
+    }
+
+    @Test public void sharedLocksAndUpgrade() throws Exception {
+        LockManager lm = new LockManager();
+        lm.acquireLock(older, p0, Permissions.READ_ONLY);
+        lm.acquireLock(younger, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(older, p0));
+        assertTrue(lm.holdsLock(younger, p0));
+
+        lm.releaseLock(younger, p0);
+        assertFalse(lm.holdsLock(younger, p0));
+        lm.acquireLock(older, p0, Permissions.READ_WRITE);
+
+        lm.releaseAllLocks(older);
+        assertFalse(lm.holdsLock(older, p0));
+        assertEquals(0, lm.getLockedPages(older).size());
+    }
+
+    @Test public void youngestVictim() throws Exception {
+        Requester[] r = deadlock(new LockManager(LockManager.VictimPolicy.YOUNGEST), younger, older);
+        assertTrue(r[0].aborted);
+        assertTrue(r[1].acquired);
+    }
+
+    @Test public void fewestLocksVictim() throws Exception {
+        // the older transaction holds fewer locks, so it is aborted
+        Requester[] r = deadlock(new LockManager(LockManager.VictimPolicy.FEWEST_LOCKS), younger, older);
+        assertTrue(r[0].acquired);
+        assertTrue(r[1].aborted);
+    }
+
+    @Test public void upgradeDeadlock() throws Exception {
+        LockManager lm = new LockManager();
+        lm.acquireLock(older, p0, Permissions.READ_ONLY);
+        lm.acquireLock(younger, p0, Permissions.READ_ONLY);
+
+        Requester olderWaits = new Requester(lm, older, p0, Permissions.READ_WRITE);
+        Requester youngerWaits = new Requester(lm, younger, p0, Permissions.READ_WRITE);
+        olderWaits.start();
+        Thread.sleep(50);
+        youngerWaits.start();
+        olderWaits.join(TIMEOUT);
+        youngerWaits.join(TIMEOUT);
+
+        assertTrue(olderWaits.acquired);
+        assertTrue(youngerWaits.aborted);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,276 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.execution.TopN;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    private List<List<Integer>> tuples;
+    private BTreeFile index;
+    private Map<String, TableStats> stats;
+    private TransactionId tid;
+
+    /**
+     * Set up a B+ tree table T(c0, c1) with its key on c0
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 1000, null, tuples, 0);
+        index = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(index, "T");
+        stats = new HashMap<>();
+        stats.put("T", new TableStats(index.getId(), 1000));
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private OpIterator plan(String field, Predicate.Op op, String constant) throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(index.getId(), "T");
+        lp.addFilter(field, op, constant);
+        lp.addProjectField("T.c0", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private int expected(int field, Predicate.Op op, int constant) {
+        int count = 0;
+        for (List<Integer> t : tuples) {
+            int v = t.get(field);
+            boolean match = switch (op) {
+                case EQUALS -> v == constant;
+                case LESS_THAN -> v < constant;
+                default -> throw new IllegalArgumentException(op.toString());
+            };
+            if (match) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A point lookup on the key is answered by an index scan alone
+     */
+    @Test public void pointLookupUsesIndex() throws Exception {
+        OpIterator plan = plan("T.c0", Predicate.Op.EQUALS, "500");
+        OpIterator scan = ((Operator) plan).getChildren()[0];
+        assertTrue(scan instanceof BTreeScan);
+        assertEquals(expected(0, Predicate.Op.EQUALS, 500), count(plan));
+    }
+
+    /**
+     * A narrow range on the key is answered by an index scan
+     */
+    @Test public void narrowRangeUsesIndex() throws Exception {
+        OpIterator plan = plan("T.c0", Predicate.Op.LESS_THAN, "20");
+        assertTrue(((Operator) plan).getChildren()[0] instanceof BTreeScan);
+        assertEquals(expected(0, Predicate.Op.LESS_THAN, 20), count(plan));
+    }
+
+    private static boolean contains(OpIterator plan, Class<?> operator) {
+        if (operator.isInstance(plan)) {
+            return true;
+        }
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (contains(child, operator)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A join with few outer tuples probes the index of the inner table
+     */
+    @Test public void selectiveJoinProbesIndex() throws Exception {
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 1000, null, innerTuples, 0);
+        BTreeFile inner = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(inner, "S");
+        stats.put("S", new TableStats(inner.getId(), 1000));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(index.getId(), "T");
+        lp.addScan(inner.getId(), "S");
+        lp.addFilter("T.c0", Predicate.Op.LESS_THAN, "5");
+        lp.addJoin("T.c1", "S.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("S.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(contains(plan, IndexNestedLoopJoin.class));
+
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 5) {
+                for (List<Integer> s : innerTuples) {
+                    if (t.get(1).equals(s.get(0))) {
+                        expected++;
+                    }
+                }
+            }
+        }
+        assertEquals(expected, count(plan));
+    }
+
+    /**
+     * Two B+ trees keyed on their join fields are merged without sorting,
+     * and the merge leaves the output in the order the ORDER BY asks for
+     */
+    @Test public void mergeJoinFeedsOrderBy() throws Exception {
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, 1000, null, innerTuples, 0);
+        BTreeFile inner = BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0);
+        Database.getCatalog().addTable(inner, "S");
+        stats.put("S", new TableStats(inner.getId(), 1000));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(index.getId(), "T");
+        lp.addScan(inner.getId(), "S");
+        lp.addJoin("T.c0", "S.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("T.c0", null);
+        lp.addOrderBy("T.c0", true);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(contains(plan, SortMergeJoin.class));
+        assertFalse(contains(plan, OrderBy.class));
+
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+            for (List<Integer> s : innerTuples) {
+                if (t.get(0).equals(s.get(0))) {
+                    expected++;
+                }
+            }
+        }
+        int count = 0;
+        Tuple prev = null;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            if (prev != null) {
+                assertTrue(prev.getField(0).compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(0)));
+            }
+            prev = t;
+            count++;
+        }
+        plan.close();
+        assertEquals(expected, count);
+    }
+
+    /**
+     * A LIMIT over an ORDER BY keeps only the first tuples of the order
+     */
+    @Test public void limitOrderByUsesTopN() throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT T.c1 FROM T ORDER BY T.c1 LIMIT 10;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(contains(plan, TopN.class));
+        assertFalse(contains(plan, OrderBy.class));
+
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            expected.add(t.get(1));
+        }
+        expected.sort(null);
+        plan.open();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(plan.hasNext());
+            assertEquals(new IntField(expected.get(i)), plan.next().getField(0));
+        }
+        assertFalse(plan.hasNext());
+        plan.close();
+    }
+
+    /**
+     * A LIMIT without an ORDER BY stops after the first tuples
+     */
+    @Test public void limitWithoutOrderBy() throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT T.c1 FROM T LIMIT 7;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(contains(plan, Limit.class));
+        assertEquals(7, count(plan));
+    }
+
+    /**
+     * Several aggregates over a two-field grouping come out of a single
+     * Aggregate, with the select list in the order of the query
+     */
+    @Test public void multipleAggregatesAndGroupByFields() throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT T.c1, SUM(T.c0), T.c0, COUNT(T.c1), MAX(T.c0) FROM T WHERE T.c0 < 30 GROUP BY T.c0, T.c1;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        Map<List<Integer>, Integer> counts = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 30) {
+                counts.merge(List.of(t.get(1), t.get(0)), 1, Integer::sum);
+            }
+        }
+        int groups = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int c1 = ((IntField) t.getField(0)).getValue();
+            int c0 = ((IntField) t.getField(2)).getValue();
+            Integer count = counts.get(List.of(c1, c0));
+            assertNotNull(count);
+            assertEquals(new IntField(c0 * count), t.getField(1));
+            assertEquals(new IntField(count), t.getField(3));
+            assertEquals(new IntField(c0), t.getField(4));
+            groups++;
+        }
+        plan.close();
+        assertEquals(counts.size(), groups);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageCodecs;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PageCodecsTest extends SimpleDbTestBase {
+
+    private static PageId roundTrip(PageId pid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageCodecs.writePageId(new DataOutputStream(bytes), pid);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        PageId read = PageCodecs.readPageId(in);
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    /**
+     * Unit test for PageCodecs.writePageId() and readPageId()
+     */
+    @Test public void pageIds() throws IOException {
+        HeapPageId hpid = new HeapPageId(7, 3);
+        assertEquals(hpid, roundTrip(hpid));
+
+        BTreePageId bpid = new BTreePageId(7, 3, BTreePageId.LEAF);
+        PageId read = roundTrip(bpid);
+        assertEquals(bpid, read);
+        assertEquals(BTreePageId.LEAF, ((BTreePageId) read).pgcateg());
+    }
+
+    /**
+     * Unit test for PageCodecs.newPage()
+     */
+    @Test public void newPage() throws IOException {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPageId hpid = new HeapPageId(-1, -1);
+        Page page = PageCodecs.newPage(hpid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(page instanceof HeapPage);
+        assertEquals(hpid, page.getId());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData());
+
+        BTreePageId rootPtrId = new BTreePageId(-1, 0, BTreePageId.ROOT_PTR);
+        byte[] data = BTreeRootPtrPage.createEmptyPageData();
+        page = PageCodecs.newPage(rootPtrId, data);
+        assertTrue(page instanceof BTreeRootPtrPage);
+        assertArrayEquals(data, page.getPageData());
+    }
+
+    /**
+     * Unit test for PageCodecs.register() with a tag that is taken
+     */
+    @Test(expected = IllegalArgumentException.class) public void registerTakenTag() {
+        PageCodecs.register(PageCodecs.HEAP_PAGE, HeapPageId.class, null);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecsTest.class);
+    }
+}
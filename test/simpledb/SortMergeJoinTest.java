@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  final int width1 = 2;
+  final int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+
+  /**
+   * Initialize each unit test; both children are sorted on column 0
+   */
+  @Before public void createTupleLists() {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    assertEquals(expected, op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate; the output
+   * comes in join order
+   */
+  @Test public void eqJoin() throws Exception {
+    OpIterator expected = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &gt; predicate, which is
+   * driven by the outer child
+   */
+  @Test public void gtJoin() throws Exception {
+    OpIterator expected = TestUtil.createTupleList(width1 + width2,
+        new int[] { 3, 4, 1, 2, 3,
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3,
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3,
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), scan1, scan2);
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &lt;= predicate, which is
+   * driven by the inner child
+   */
+  @Test public void leJoin() throws Exception {
+    OpIterator expected = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    1, 2, 2, 3, 4,
+                    1, 2, 3, 4, 5,
+                    3, 4, 3, 4, 5,
+                    1, 2, 4, 5, 6,
+                    3, 4, 4, 5, 6,
+                    1, 2, 5, 6, 7,
+                    3, 4, 5, 6, 7,
+                    5, 6, 5, 6, 7 });
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN_OR_EQ, 0), scan1, scan2);
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() with duplicate keys on both sides
+   */
+  @Test public void duplicateKeys() throws Exception {
+    OpIterator left = TestUtil.createTupleList(1, new int[] { 1, 1, 2, 2, 2, 3 });
+    OpIterator right = TestUtil.createTupleList(1, new int[] { 1, 2, 2, 4 });
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(2 + 3 * 2, count);
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * A predicate that cannot be merged is rejected
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEquals() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), scan1, scan2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -108,7 +108,21 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Assert.assertEquals(10200, s.estimateTableCardinality(1.0));
 		Assert.assertEquals(0, s.estimateTableCardinality(0.0));
 	}
-	
+
+	/**
+	 * Verify that an index scan is estimated cheaper than a sequential scan
+	 * for a selective predicate, and dearer when most of the table matches
+	 */
+	@Test public void estimateIndexScanCostTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+
+		Assert.assertTrue(s.estimateIndexScanCost(0.01) < s.estimateScanCost());
+		Assert.assertTrue(s.estimateIndexScanCost(1.0) > s.estimateScanCost());
+		Assert.assertTrue(s.estimateIndexScanCost(0.01) < s.estimateIndexScanCost(0.3));
+		// even an empty range reads a leaf page
+		Assert.assertTrue(s.estimateIndexScanCost(0.0) >= IO_COST);
+	}
+
 	/**
 	 * Verify that selectivity estimates do something reasonable.
 	 * Don't bother splitting this into N different functions for
@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.execution.OpIterator;
+import simpledb.execution.TopN;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test; column 1 numbers the tuples, so ties on
+   * column 0 can be told apart
+   */
+  @Before public void createTupleList() {
+    this.scan = TestUtil.createTupleList(2,
+        new int[] { 3, 0,
+                    1, 1,
+                    4, 2,
+                    1, 3,
+                    5, 4,
+                    9, 5,
+                    2, 6,
+                    6, 7 });
+  }
+
+  /**
+   * The smallest tuples come out in ascending order, ties in child order
+   */
+  @Test public void ascending() throws Exception {
+    TopN op = new TopN(0, true, 4, scan);
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 1,
+                    1, 3,
+                    2, 6,
+                    3, 0 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * The largest tuples come out in descending order
+   */
+  @Test public void descending() throws Exception {
+    TopN op = new TopN(0, false, 3, scan);
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 9, 5,
+                    6, 7,
+                    5, 4 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * A limit past the end of the child returns the whole child, sorted
+   */
+  @Test public void limitPastEnd() throws Exception {
+    TopN op = new TopN(0, true, 100, scan);
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 1,
+                    1, 3,
+                    2, 6,
+                    3, 0,
+                    4, 2,
+                    5, 4,
+                    6, 7,
+                    9, 5 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * A limit of zero returns nothing
+   */
+  @Test public void limitZero() throws Exception {
+    TopN op = new TopN(0, true, 0, scan);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -5,24 +5,38 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import static org.junit.Assert.*;
+
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, List<List<Integer>> expectedResult)
             throws DbException, TransactionAbortedException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, 1, expectedResult);
+    }
+
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn,
+                                  int workers, List<List<Integer>> expectedResult)
+            throws DbException, TransactionAbortedException {
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, table.getId(), "");
-        Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation);
+        Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation, workers);
 
         SystemTestUtil.matchTuples(ag, expectedResult);
         Database.getBufferPool().transactionComplete(tid);
@@ -81,19 +95,27 @@ public class AggregateTest extends SimpleDbTestBase {
     private final static int ROWS = 1024;
     private final static int MAX_VALUE = 64;
     private final static int COLUMNS = 3;
+    // enough rows for many more pages than a worker claims at a time
+    private final static int PARALLEL_ROWS = 20000;
+    private final static int WORKERS = 4;
     private void doAggregate(Aggregator.Op operation, int groupColumn)
             throws IOException, DbException, TransactionAbortedException {
+        doAggregate(operation, groupColumn, ROWS, 1);
+    }
+
+    private void doAggregate(Aggregator.Op operation, int groupColumn, int rows, int workers)
+            throws IOException, DbException, TransactionAbortedException {
         // Create the table
         List<List<Integer>> createdTuples = new ArrayList<>();
         HeapFile table = SystemTestUtil.createRandomHeapFile(
-                COLUMNS, ROWS, MAX_VALUE, null, createdTuples);
+                COLUMNS, rows, MAX_VALUE, null, createdTuples);
 
         // Compute the expected answer
         List<List<Integer>> expected =
                 aggregate(createdTuples, operation, groupColumn);
 
         // validate that we get the answer
-        validateAggregate(table, operation, 1, groupColumn, expected);
+        validateAggregate(table, operation, 1, groupColumn, workers, expected);
     }
 
     @Test public void testSum() throws IOException, DbException, TransactionAbortedException {
@@ -121,6 +143,119 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    @Test public void testParallelSum() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.SUM, 0, PARALLEL_ROWS, WORKERS);
+    }
+
+    @Test public void testParallelMin() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.MIN, 0, PARALLEL_ROWS, WORKERS);
+    }
+
+    @Test public void testParallelCount() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.COUNT, 0, PARALLEL_ROWS, WORKERS);
+    }
+
+    @Test public void testParallelAverage() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.AVG, 0, PARALLEL_ROWS, WORKERS);
+    }
+
+    @Test public void testParallelAverageNoGroup()
+            throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING, PARALLEL_ROWS, WORKERS);
+    }
+
+    /**
+     * The workers apply the predicates of Filters between the aggregate and
+     * the scan
+     */
+    @Test public void testParallelFiltered() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, PARALLEL_ROWS, MAX_VALUE, null, createdTuples);
+        List<List<Integer>> kept = new ArrayList<>();
+        for (List<Integer> t : createdTuples) {
+            if (t.get(2) < MAX_VALUE / 2) kept.add(t);
+        }
+        List<List<Integer>> expected = aggregate(kept, Aggregator.Op.SUM, 0);
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Filter f = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(MAX_VALUE / 2)), ss);
+        Aggregate ag = new Aggregate(f, 1, 0, Aggregator.Op.SUM, WORKERS);
+        SystemTestUtil.matchTuples(ag, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Several aggregates are merged from the workers' partial states in one
+     * final aggregate, AVG included
+     */
+    @Test public void testParallelMultipleAggregates() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, PARALLEL_ROWS, MAX_VALUE, null, createdTuples);
+        Aggregator.Op[] ops = { Aggregator.Op.AVG, Aggregator.Op.COUNT, Aggregator.Op.MAX };
+        Map<Integer, List<Integer>> byGroup = new HashMap<>();
+        for (Aggregator.Op op : ops) {
+            for (List<Integer> result : aggregate(createdTuples, op, 0)) {
+                byGroup.computeIfAbsent(result.get(0), k -> new ArrayList<>(List.of(k))).add(result.get(1));
+            }
+        }
+        List<List<Integer>> expected = new ArrayList<>(byGroup.values());
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Aggregate ag = new Aggregate(ss, new int[]{1, 1, 1}, new int[]{0}, ops, WORKERS);
+        SystemTestUtil.matchTuples(ag, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParallelDeadlock() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, PARALLEL_ROWS, MAX_VALUE, null, new ArrayList<>());
+        HeapPageId first = new HeapPageId(table.getId(), 0);
+        HeapPageId last = new HeapPageId(table.getId(), table.numPages() - 1);
+
+        // the writer holds the last page, the parallel aggregate locks the
+        // others and waits for it, then the writer asks for the first page
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().getPage(writer, last, Permissions.READ_WRITE);
+        TransactionId reader = new TransactionId();
+        AtomicReference<Exception> readerError = new AtomicReference<>();
+        Thread readerThread = new Thread(() -> {
+            try {
+                Aggregate ag = new Aggregate(new SeqScan(reader, table.getId(), ""),
+                        1, 0, Aggregator.Op.SUM, WORKERS);
+                ag.open();
+                while (ag.hasNext())
+                    ag.next();
+                ag.close();
+                Database.getBufferPool().transactionComplete(reader);
+            } catch (Exception e) {
+                readerError.set(e);
+                Database.getBufferPool().transactionComplete(reader, false);
+            }
+        });
+        readerThread.start();
+        Thread.sleep(500);
+
+        boolean writerAborted = false;
+        try {
+            Database.getBufferPool().getPage(writer, first, Permissions.READ_WRITE);
+        } catch (TransactionAbortedException e) {
+            writerAborted = true;
+        }
+        Database.getBufferPool().transactionComplete(writer, !writerAborted);
+        readerThread.join(10000);
+
+        assertFalse("parallel aggregate hung", readerThread.isAlive());
+        // exactly one of the two is the victim
+        if (writerAborted)
+            assertNull(readerError.get());
+        else
+            assertTrue(readerError.get() instanceof TransactionAbortedException);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -0,0 +1,110 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static int numTables() {
+        int count = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Join two random tables on column 0 with the given memory budget, twice
+     * (the second time after a rewind), and check no spill file is left
+     * behind
+     */
+    private void validateJoin(HeapFile table1, List<List<Integer>> t1Tuples,
+            HeapFile table2, List<List<Integer>> t2Tuples, int memoryPages) throws Exception {
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        int tables = numTables();
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, ss2, memoryPages);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        joinOp.open();
+        joinOp.rewind();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            count++;
+        }
+        assertEquals(expectedResults.size(), count);
+        joinOp.close();
+        assertEquals(tables, numTables());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void validateRandomJoin(int rows1, int rows2, int maxValue, int memoryPages) throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows1, maxValue, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows2, maxValue, null, t2Tuples);
+        validateJoin(table1, t1Tuples, table2, t2Tuples, memoryPages);
+    }
+
+    /** The build side fits in memory. */
+    @Test public void testInMemory() throws Exception {
+        validateRandomJoin(1000, 1000, 500, HashEquiJoin.DEFAULT_MEMORY_PAGES);
+    }
+
+    /** The build side is partitioned, and some partitions split again. */
+    @Test public void testSpill() throws Exception {
+        validateRandomJoin(5000, 3000, 2000, 1);
+    }
+
+    /** A one tuple budget repartitions to the deepest level. */
+    @Test public void testTinyBudget() throws Exception {
+        validateRandomJoin(1000, 500, 300, 0);
+    }
+
+    /** A single key can't be split by hashing, and is joined in chunks. */
+    @Test public void testSkew() throws Exception {
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        columnSpecification.put(0, 7);
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 1200, columnSpecification, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, columnSpecification, t2Tuples);
+        validateJoin(table1, t1Tuples, table2, t2Tuples, 1);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    /**
+     * Join a heap file on its column 1 with a B+ tree keyed on column 0
+     */
+    private void validateJoin(Predicate.Op op, int outerRows, int innerRows, int maxValue) throws Exception {
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(COLUMNS, outerRows, maxValue, null, outerTuples);
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(COLUMNS, innerRows, maxValue, null, innerTuples, 0);
+
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t1 : outerTuples) {
+            for (List<Integer> t2 : innerTuples) {
+                if (new IntField(t1.get(1)).compare(op, new IntField(t2.get(0)))) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, outer.getId(), "");
+        BTreeScan bs = new BTreeScan(tid, inner.getId(), "", null);
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(new JoinPredicate(1, op, 0), ss, bs);
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        // a second pass probes the index again
+        joinOp.open();
+        joinOp.rewind();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            count++;
+        }
+        assertEquals(expectedResults.size(), count);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testEquals() throws Exception {
+        validateJoin(Predicate.Op.EQUALS, 200, 3000, 1000);
+    }
+
+    @Test public void testNoMatch() throws Exception {
+        validateJoin(Predicate.Op.EQUALS, 50, 100, 100000);
+    }
+
+    @Test public void testLessThan() throws Exception {
+        validateJoin(Predicate.Op.LESS_THAN, 20, 1000, 1000);
+    }
+
+    @Test public void testGreaterThanOrEq() throws Exception {
+        validateJoin(Predicate.Op.GREATER_THAN_OR_EQ, 20, 1000, 1000);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CyclicBarrier;
 
 import org.junit.Test;
 
@@ -14,6 +15,7 @@ import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import static org.junit.Assert.*;
 
@@ -45,6 +47,22 @@ public class LogTest extends SimpleDbTestBase {
         insert.close();
     }
 
+    // delete the rows whose first field is v1
+    void deleteRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, TransactionAbortedException, IOException {
+        List<Tuple> victims = new ArrayList<>();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == v1)
+                victims.add(tu);
+        }
+        scan.close();
+        for (Tuple tu : victims)
+            Database.getBufferPool().deleteTuple(t.getId(), tu);
+    }
+
     // check that the specified tuple is, or is not, present
     void look(HeapFile hf, Transaction t, int v1, boolean present)
         throws DbException, TransactionAbortedException {
@@ -435,6 +453,216 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestUpdateRecordSize()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // an UPDATE record holds the changed bytes of the page, not
+        // whole page images, and can still be undone
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 40);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getLogFile().getLogBytesWritten(t1.getId())
+                   < BufferPool.getPageSize() / 8);
+        t1.abort();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 40, false);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // without FORCE, a commit only logs the pages
+        // T1 inserts and commits
+        // T2 inserts into the other table but does not commit
+        // crash
+        // redo must bring back T1's data, undo must remove T2's
+
+        Database.getBufferPool().setForceAtCommit(false);
+        doInsert(hf1, 30, 31);
+
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(0, countValue(onDisk, 31));
+        assertTrue(Database.getBufferPool().getDirtyPageTable()
+                   .containsKey(new HeapPageId(hf1.getId(), 0)));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 32);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 30, true);
+        look(hf1, t, 31, true);
+        look(hf2, t, 32, false);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint does not flush the pool, so it must carry the
+        // dirty page table, and truncation must keep the records that
+        // redo needs
+        // T1 inserts and commits without FORCE
+        // checkpoint
+        // T2 inserts but does not commit
+        // crash
+
+        Database.getBufferPool().setForceAtCommit(false);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 50);
+        insertRow(hf1, t1, 51);
+        t1.commit();
+
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 52);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 50, true);
+        look(hf1, t, 51, true);
+        look(hf2, t, 52, false);
+        t.commit();
+    }
+
+    @Test public void TestStealRevertCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, the page is stolen, then T1 deletes what it
+        // inserted and commits
+        // crash
+        // the second UPDATE record must undo the bytes of the first
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 60);
+        Database.getBufferPool().flushAllPages(); // XXX steal
+        deleteRow(hf1, t1, 60);
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 60, false);
+        t.commit();
+    }
+
+    @Test public void TestBufferPoolCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a transaction that never logged BEGIN inserts and commits
+        // through the buffer pool without FORCE
+        // crash
+        // its changes are only in the log, and must not be undone
+
+        Database.getBufferPool().setForceAtCommit(false);
+        TransactionId tid = new TransactionId();
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(70));
+        value.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(tid, hf1.getId(), value);
+        Database.getBufferPool().transactionComplete(tid);
+        assertFalse(Database.getLogFile().isActive(tid));
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 70, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // transactions that commit together share a single force:
+        // the first committer waits for the others to append their
+        // commit records, then forces them all
+
+        final int committers = 8;
+        Database.getLogFile().setGroupCommitDelay(1000);
+        Transaction[] ts = new Transaction[committers];
+        for (int i = 0; i < committers; i++) {
+            ts[i] = new Transaction();
+            ts[i].start();
+        }
+        long forces = Database.getLogFile().getGroupForces();
+
+        CyclicBarrier barrier = new CyclicBarrier(committers);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (Transaction t : ts) {
+            Thread th = new Thread(() -> {
+                try {
+                    barrier.await();
+                    t.commit();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        for (Thread th : threads)
+            th.join();
+        Database.getLogFile().setGroupCommitDelay(0);
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(1, Database.getLogFile().getGroupForces() - forces);
+    }
+
+    int countValue(HeapPage p, int v1) {
+        int count = 0;
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v1)
+                count++;
+        }
+        return count;
+    }
+
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
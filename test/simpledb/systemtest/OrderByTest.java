@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.assertEquals;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private static int numTables() {
+        int count = 0;
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sort a random table on column 1 with the given memory budget, and
+     * compare with a stable in-memory sort, twice (the second time after a
+     * rewind)
+     */
+    private void validateSort(int rows, boolean asc, int memoryPages) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, 100, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        Comparator<List<Integer>> byField = Comparator.comparing(t -> t.get(1));
+        expected.sort(asc ? byField : byField.reversed());
+
+        int tables = numTables();
+        TransactionId tid = new TransactionId();
+        OrderBy op = new OrderBy(1, asc, new SeqScan(tid, table.getId(), ""), memoryPages);
+        op.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int i = 0;
+            while (op.hasNext()) {
+                Tuple t = op.next();
+                for (int j = 0; j < COLUMNS; j++) {
+                    assertEquals(new IntField(expected.get(i).get(j)), t.getField(j));
+                }
+                i++;
+            }
+            assertEquals(rows, i);
+            op.rewind();
+        }
+        op.close();
+        assertEquals(tables, numTables());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The input fits in memory. */
+    @Test public void testInMemory() throws Exception {
+        validateSort(2000, true, OrderBy.DEFAULT_MEMORY_PAGES);
+    }
+
+    /** The runs are few enough for a single merge. */
+    @Test public void testSingleMerge() throws Exception {
+        validateSort(3000, false, 3);
+    }
+
+    /** The runs are merged in several passes. */
+    @Test public void testMultiplePasses() throws Exception {
+        validateSort(3000, true, 1);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
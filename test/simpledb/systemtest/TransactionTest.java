@@ -234,7 +234,7 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
-    @Test public void testAllDirtyFails()
+    @Test public void testAllDirtyEvicts()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
@@ -247,11 +247,9 @@ public class TransactionTest extends SimpleDbTestBase {
         // Insert a new row
         AbortEvictionTest.insertRow(f, t);
 
-        // Scanning the table must fail because it can't evict the dirty page
-        try {
-            AbortEvictionTest.findMagicTuple(f, t);
-            fail("Expected scan to run out of available buffer pages");
-        } catch (DbException ignored) {}
+        // Scanning the table must write back the dirty page (STEAL) to make
+        // room, and still see the new row
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
         t.commit();
     }
 